@@ -14,15 +14,22 @@ INSERT INTO "consumer" ("id", "max_power") VALUES
 
 DROP TABLE IF EXISTS "datapoint";
 DROP SEQUENCE IF EXISTS datapoint_id_seq;
-CREATE SEQUENCE datapoint_id_seq INCREMENT 1 MINVALUE 1 MAXVALUE 2147483647 START 3301 CACHE 1;
+CREATE SEQUENCE datapoint_id_seq AS bigint INCREMENT 1000 MINVALUE 1 MAXVALUE 9223372036854775807 START 4300 CACHE 1;
 
+-- partitioned by month on "timestamp", the server creates the monthly partitions (datapoint_pYYYYMM)
+-- no default on "id": each nextval of datapoint_id_seq reserves a block of 1000 ids, an insert must
+-- always give an id taken from such a block (see DataPointIds)
 CREATE TABLE "public"."datapoint" (
-    "id" integer DEFAULT nextval('datapoint_id_seq') NOT NULL,
-    "timestamp" bigint,
+    "id" bigint NOT NULL,
+    "timestamp" bigint NOT NULL,
     "value" double precision,
     "measurement" integer,
-    CONSTRAINT "datapoint_pkey" PRIMARY KEY ("id")
-) WITH (oids = false);
+    CONSTRAINT "datapoint_pkey" PRIMARY KEY ("id", "timestamp"),
+    CONSTRAINT "datapoint_measurement_timestamp_key" UNIQUE ("measurement", "timestamp") INCLUDE ("value")
+) PARTITION BY RANGE ("timestamp");
+
+CREATE TABLE "public"."datapoint_p202504" PARTITION OF "public"."datapoint" FOR VALUES FROM (1743465600) TO (1746057600);
+CREATE TABLE "public"."datapoint_default" PARTITION OF "public"."datapoint" DEFAULT;
 
 TRUNCATE "datapoint";
 INSERT INTO "datapoint" ("id", "timestamp", "value", "measurement") VALUES
@@ -1082,7 +1089,7 @@ INSERT INTO "wind_turbine" ("id", "height", "bladelength") VALUES
 
 ALTER TABLE ONLY "public"."consumer" ADD CONSTRAINT "consumer_id_fkey" FOREIGN KEY (id) REFERENCES sensor(id) NOT DEFERRABLE;
 
-ALTER TABLE ONLY "public"."datapoint" ADD CONSTRAINT "fk_datapoint_measurement" FOREIGN KEY (measurement) REFERENCES measurement(id) NOT DEFERRABLE;
+ALTER TABLE "public"."datapoint" ADD CONSTRAINT "fk_datapoint_measurement" FOREIGN KEY (measurement) REFERENCES measurement(id) NOT DEFERRABLE;
 
 ALTER TABLE ONLY "public"."ev_charger" ADD CONSTRAINT "ev_charger_id_fkey" FOREIGN KEY (id) REFERENCES consumer(id) NOT DEFERRABLE;
 
@@ -1,20 +1,30 @@
 package fr.imta.smartgrid.model;
 
 import io.vertx.core.json.JsonObject;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
 
+// datapoints are written once and read in bulk, keeping them in the shared cache would only grow the heap
 @Entity
+@Cacheable(false)
 @Table(name = "datapoint")
 public class DataPoint {
+    // ids are reserved by blocks: datapoint_id_seq is incremented by this much and each nextval
+    // gives ID_ALLOCATION_SIZE ids, so inserts need no round trip to read back their key and can be batched
+    public static final int ID_ALLOCATION_SIZE = 1000;
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private int id;
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "datapoint_id")
+    @SequenceGenerator(name = "datapoint_id", sequenceName = "datapoint_id_seq", allocationSize = ID_ALLOCATION_SIZE)
+    private long id;
 
     private long timestamp;
 
@@ -24,11 +34,16 @@ public class DataPoint {
     @JoinColumn(name = "measurement")
     private Measurement measurement;
 
-    public int getId() {
+    // not stored: what this datapoint added to the cached total of its measurement (LastValueCache),
+    // taken back if the datapoint cannot be saved
+    @Transient
+    private double increment;
+
+    public long getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
@@ -56,6 +71,14 @@ public class DataPoint {
         this.measurement = measurement;
     }
 
+    public double getIncrement() {
+        return increment;
+    }
+
+    public void setIncrement(double increment) {
+        this.increment = increment;
+    }
+
 
     
 }
@@ -0,0 +1,167 @@
+package fr.imta.smartgrid.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.imta.smartgrid.server.metrics.Metrics;
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+// Runs the blocking database work (EclipseLink / JDBC) outside of the Vert.x event loops.
+//  - EVENT_LOOP: historical behaviour, the work runs directly on the event loop
+//  - WORKER: a fixed pool of platform threads
+//  - VIRTUAL: one virtual thread per task
+// In WORKER and VIRTUAL mode at most `maxConcurrency` tasks touch the database at the same time,
+// and the permits are not handed out in submission order: tasks that must not overtake each other
+// (the readings of a sensor) are submitted with a key, see execute(int, Runnable).
+// Like vertx-web blocking handlers, a wrapped route handler writes its response from the DB thread
+// and Vert.x hands the write over to the event loop of the connection.
+public class DbExecutor {
+    public enum Mode {
+        EVENT_LOOP, WORKER, VIRTUAL
+    }
+
+    // tasks with an ordering key are spread over this many lanes, each lane runs one task at a time
+    private static final int ORDERED_LANES = 256;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final Lane[] lanes = new Lane[ORDERED_LANES];
+    private final Semaphore permits;
+    private final Metrics metrics;
+    private final String prefix; // of the metrics
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public DbExecutor(Mode mode, int maxConcurrency, Metrics metrics) {
+        this(mode, maxConcurrency, metrics, "db");
+    }
+
+    // `name` prefixes the thread names and the metrics (`<name>.executor.*`) of this executor
+    public DbExecutor(Mode mode, int maxConcurrency, Metrics metrics, String name) {
+        this.mode = mode;
+        this.metrics = metrics;
+        this.prefix = name + ".executor.";
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = switch (mode) {
+            case EVENT_LOOP -> null;
+            case WORKER -> Executors.newFixedThreadPool(maxConcurrency, Thread.ofPlatform().name(name + "-worker-", 0).factory());
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-virtual-", 0).factory());
+        };
+
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+
+        metrics.gauge(prefix + "running", running::get);
+        metrics.gauge(prefix + "waiting", waiting::get);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Route handler running `handler` on the DB executor
+    public Handler<RoutingContext> wrap(Handler<RoutingContext> handler) {
+        if (mode == Mode.EVENT_LOOP) {
+            return handler;
+        }
+        return context -> execute(() -> {
+            try {
+                handler.handle(context);
+            } catch (Throwable e) {
+                context.fail(e);
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        if (mode == Mode.EVENT_LOOP) {
+            task.run();
+            return;
+        }
+
+        long submitted = System.nanoTime();
+        waiting.incrementAndGet();
+        executor.execute(() -> {
+            // not interruptible: a skipped task would never release what its caller took for it
+            // (an IngestGate slot, the response of a request)
+            permits.acquireUninterruptibly();
+
+            waiting.decrementAndGet();
+            running.incrementAndGet();
+            long started = System.nanoTime();
+            metrics.record(prefix + "wait_us", TimeUnit.NANOSECONDS.toMicros(started - submitted));
+            try {
+                task.run();
+            } catch (Throwable e) {
+                System.err.println("Error in database task: " + e.getMessage());
+            } finally {
+                metrics.record(prefix + "run_us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+                running.decrementAndGet();
+                permits.release();
+            }
+        });
+    }
+
+    // Like execute(task), but the tasks submitted with the same key run one after the other, in the
+    // order they were submitted. The ingest paths key the readings by sensor so that the energy
+    // totals of a sensor are stored in timestamp order. Different keys may share a lane.
+    public void execute(int key, Runnable task) {
+        if (mode == Mode.EVENT_LOOP) {
+            task.run();
+            return;
+        }
+        lanes[Math.floorMod(key, lanes.length)].submit(task);
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    // Queue of ordered tasks, at most one of them is submitted to the executor at a time
+    private class Lane {
+        private final Queue<Runnable> tasks = new ArrayDeque<>(); // guarded by this
+        private boolean scheduled; // guarded by this
+
+        void submit(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            execute(this::runNext);
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        }
+
+        private void scheduleNext() {
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            execute(this::runNext);
+        }
+    }
+}
@@ -2,19 +2,18 @@ package fr.imta.smartgrid.server;
 
 import fr.imta.smartgrid.model.EVCharger;
 import fr.imta.smartgrid.model.Sensor;
-import io.vertx.core.Handler;
+import fr.imta.smartgrid.server.handlers.DatabaseHandler;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
-public class ExampleHandler implements Handler<RoutingContext> {
-    EntityManager db;
-
-    public ExampleHandler(EntityManager db) {
-        this.db = db;
+public class ExampleHandler extends DatabaseHandler {
+    public ExampleHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext event) {
+    protected void handle(RoutingContext event, EntityManager db) {
         Long nbSensors = (Long)db.createNativeQuery("SELECT count(*) FROM sensor").getSingleResult();
         
         event.end("There are " + nbSensors + " sensors in database");
@@ -1,41 +1,223 @@
 package fr.imta.smartgrid.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.eclipse.persistence.config.BatchWriting;
 import org.eclipse.persistence.config.TargetServer;
 
+import fr.imta.smartgrid.server.cold.ColdTier;
+import fr.imta.smartgrid.server.db.DatapointPartitionManager;
+import fr.imta.smartgrid.server.db.MigrationRunner;
+import fr.imta.smartgrid.server.db.Migrations;
+import fr.imta.smartgrid.server.db.ReadReplica;
+import fr.imta.smartgrid.server.db.RetentionJob;
+import fr.imta.smartgrid.server.db.Rollups;
 import fr.imta.smartgrid.server.handlers.*;
+import fr.imta.smartgrid.server.ingest.DataPointWriter;
+import fr.imta.smartgrid.server.ingest.IngestGate;
+import fr.imta.smartgrid.server.ingest.LastValueCache;
+import fr.imta.smartgrid.server.ingest.ReadingDeduplicator;
+import fr.imta.smartgrid.server.ingest.WriteAheadLog;
+import fr.imta.smartgrid.server.metrics.EventLoopMonitor;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import fr.imta.smartgrid.server.store.DataPointStore;
+import fr.imta.smartgrid.server.store.MappedDataPointStore;
+import fr.imta.smartgrid.server.store.PostgresDataPointStore;
+import fr.imta.smartgrid.server.store.StoreBenchmark;
+import fr.imta.smartgrid.server.udp.BinaryUDPServer;
+import fr.imta.smartgrid.server.udp.ParserBenchmark;
 import fr.imta.smartgrid.server.udp.UDPServer;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.Persistence;
 
 import static org.eclipse.persistence.config.PersistenceUnitProperties.*;
 
 public class VertxServer {
     private Vertx vertx;
-    private EntityManager db; // database object
+    private EntityManagerFactory emf; // database, each request / ingest batch opens its own EntityManager
+    private Metrics metrics;
+    private ReadReplica replica; // null unless DB_REPLICA_URL is set
+    private DbExecutor dbExecutor; // where the blocking database work runs
+    private DbExecutor streamExecutor; // where the streamed raw values responses run
+    private DataPointStore store; // where the datapoints are written and read
+    private DatapointPartitionManager partitions; // monthly partitions of datapoint
+    private ColdTier coldTier; // null unless COLD_TIER_AGE_DAYS is set
+    private RetentionJob retention; // null unless RETENTION_ENABLED is set
+    private LastValueCache lastValues; // latest energy totals, avoids a datapoint query per reading
+    private ReadingDeduplicator dedup; // drops readings resent by the sensors
+    private WriteAheadLog wal; // null unless WAL_DIR is set, readings are then acknowledged once on local disk
+    private DataPointWriter writer; // batched datapoint inserts for the sensor ingest
+    private IngestGate windTurbineGate;
     private UDPServer udpServer;
+    private BinaryUDPServer binaryUdpServer; // null unless BINARY_UDP_PORT is set
 
     public VertxServer() {
-        this.vertx = Vertx.vertx();
+        // the native transport (epoll) is needed for SO_REUSEPORT, Vert.x falls back to NIO without it
+        this.vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(true));
 
         // setup database connexion
         Map<String, String> properties = new HashMap<>();
 
         properties.put(LOGGING_LEVEL, "FINE");
-        properties.put(CONNECTION_POOL_MIN, "1");
+
+        // optional overrides of the connection settings of persistence.xml
+        putIfSet(properties, JDBC_URL, "DB_URL");
+        putIfSet(properties, JDBC_USER, "DB_USER");
+        putIfSet(properties, JDBC_PASSWORD, "DB_PASSWORD");
+
+        // EclipseLink uses the default pool for transactions and the read pool for queries outside of them
+        int poolMin = Config.getInt("DB_POOL_MIN", 2);
+        int poolMax = Config.getInt("DB_POOL_MAX", 16);
+        String poolTimeout = Config.get("DB_POOL_TIMEOUT_MS", "5000");
+        for (String pool : new String[] { CONNECTION_POOL + "default.", CONNECTION_POOL_READ }) {
+            properties.put(pool + CONNECTION_POOL_INITIAL, String.valueOf(poolMin));
+            properties.put(pool + CONNECTION_POOL_MIN, String.valueOf(poolMin));
+            properties.put(pool + CONNECTION_POOL_MAX, String.valueOf(poolMax));
+            properties.put(pool + CONNECTION_POOL_WAIT, poolTimeout);
+        }
 
         properties.put(TARGET_SERVER, TargetServer.None);
 
-        var emf = Persistence.createEntityManagerFactory("smart-grid", properties);
-        db = emf.createEntityManager();
+        // the inserts of a commit are sent as JDBC batches, possible since the DataPoint ids come from a sequence
+        properties.put(BATCH_WRITING, BatchWriting.JDBC);
+        properties.put(BATCH_WRITING_SIZE, Config.get("DB_BATCH_WRITING_SIZE", "500"));
+
+        this.emf = Persistence.createEntityManagerFactory("smart-grid", properties);
+
+        this.metrics = new Metrics();
+
+        // Optional streaming replica for the GET routes, used while its lag is under DB_REPLICA_MAX_LAG_MS
+        String replicaUrl = Config.get("DB_REPLICA_URL", null);
+        if (replicaUrl != null) {
+            Map<String, String> replicaProperties = new HashMap<>(properties);
+            replicaProperties.put(JDBC_URL, replicaUrl);
+            putIfSet(replicaProperties, JDBC_USER, "DB_REPLICA_USER");
+            putIfSet(replicaProperties, JDBC_PASSWORD, "DB_REPLICA_PASSWORD");
+            // a second session of the persistence unit, with read-only connections
+            replicaProperties.put(SESSION_NAME, "smart-grid-replica");
+            replicaProperties.put(JDBC_PROPERTY + "readOnly", "true");
+            // no shared cache: the writes go through the primary session and would never evict its entries,
+            // the mode of persistence.xml (DISABLE_SELECTIVE) is overridden for this session only
+            replicaProperties.put(SHARED_CACHE_MODE, "NONE");
+            replicaProperties.put(CACHE_SHARED_DEFAULT, "false");
+            this.replica = new ReadReplica(emf, Persistence.createEntityManagerFactory("smart-grid", replicaProperties),
+                    Config.getLong("DB_REPLICA_MAX_LAG_MS", 5000), metrics);
+        }
+
+        // DB_EXECUTION_MODE is event_loop, worker or virtual, by default the DB tasks can use
+        // every pooled connection but the one of the datapoint writer and those of the streamed reads
+        DbExecutor.Mode dbMode = DbExecutor.Mode.valueOf(Config.get("DB_EXECUTION_MODE", "virtual").toUpperCase());
+        int streamConcurrency = Config.getInt("DB_STREAM_CONCURRENCY", 2);
+        this.dbExecutor = new DbExecutor(dbMode,
+                Config.getInt("DB_MAX_CONCURRENCY", Math.max(1, poolMax - 1 - streamConcurrency)),
+                metrics);
+        // the raw values responses wait for slow clients with a permit and a connection, they get their
+        // own permits so that they cannot hold up ingest and the other routes
+        this.streamExecutor = new DbExecutor(dbMode, streamConcurrency, metrics, "db_stream");
+
+        // Upgrade the schema of an existing database (indexes...), see Migrations
+        try {
+            new MigrationRunner(emf).run(Migrations.ALL);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot migrate the database schema", e);
+        }
+        // after the migrations, the heartbeat table of the replica check may be new
+        if (replica != null) {
+            replica.check();
+        }
+
+        // DATAPOINT_STORE is postgres (the datapoint table) or mapped (column files in MAPPED_STORE_DIR)
+        String storeKind = Config.get("DATAPOINT_STORE", "postgres");
+        try {
+            this.store = switch (storeKind) {
+                case "postgres" -> new PostgresDataPointStore(emf, replica, Config.getInt("DB_FETCH_SIZE", 1000));
+                case "mapped" -> new MappedDataPointStore(Path.of(Config.get("MAPPED_STORE_DIR", "datapoints")),
+                        Config.getBoolean("MAPPED_STORE_FSYNC", false));
+                default -> throw new IllegalArgumentException("Unknown DATAPOINT_STORE " + storeKind + ", expected postgres or mapped");
+            };
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the datapoint store", e);
+        }
+
+        // Create the upcoming monthly partitions of datapoint (and convert the table if asked) before any insert
+        this.partitions = new DatapointPartitionManager(emf, metrics,
+                Config.getInt("PARTITION_MONTHS_AHEAD", 3),
+                Config.getInt("PARTITION_RETENTION_MONTHS", 0),
+                Config.getBoolean("PARTITION_CONVERT", false));
+        partitions.maintain();
+
+        int coldTierAgeDays = Config.getInt("COLD_TIER_AGE_DAYS", 0);
+        if (coldTierAgeDays > 0) {
+            this.coldTier = new ColdTier(emf, metrics, coldTierAgeDays, Config.getInt("COLD_TIER_CHUNKS_PER_RUN", 1000));
+        }
+        if (Config.getBoolean("RETENTION_ENABLED", false)) {
+            this.retention = new RetentionJob(emf, metrics,
+                    Config.get("RETENTION_POLICIES", "*=30d"),
+                    Config.getInt("RETENTION_BATCH_SIZE", 5000),
+                    Config.getInt("RETENTION_MAX_BATCHES_PER_RUN", 100),
+                    Config.getInt("RETENTION_MAX_ACTIVE_QUERIES", 8));
+        }
+
+        // Apply what the write-ahead log of the previous run did not, before the cache reads the totals
+        String walDir = Config.get("WAL_DIR", null);
+        if (walDir != null) {
+            try {
+                this.wal = new WriteAheadLog(Path.of(walDir),
+                        Config.getInt("WAL_SEGMENT_BYTES", 64 * 1024 * 1024),
+                        Config.getBoolean("WAL_FSYNC", true),
+                        Config.getInt("WRITER_BATCH_SIZE", 500),
+                        store, metrics);
+                wal.replay();
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot replay the write-ahead log in " + walDir, e);
+            }
+        }
+
+        this.lastValues = new LastValueCache(store, metrics);
+        EntityManager db = emf.createEntityManager();
+        try {
+            lastValues.warm(db);
+        } finally {
+            db.close();
+        }
+
+        // DEDUP_RING_SIZE recent timestamps per measurement, older ones in a Bloom filter of DEDUP_BLOOM_BITS bits
+        this.dedup = new ReadingDeduplicator(store,
+                Config.getBoolean("DEDUP_ENABLED", true),
+                Config.getInt("DEDUP_RING_SIZE", 64),
+                Config.getInt("DEDUP_BLOOM_BITS", 1 << 24),
+                metrics);
+
+        // Datapoints are flushed when WRITER_BATCH_SIZE are pending or after WRITER_FLUSH_INTERVAL_MS
+        this.writer = new DataPointWriter(store, metrics, lastValues, dedup, wal,
+                Config.getInt("WRITER_QUEUE_CAPACITY", 10000),
+                Config.getInt("WRITER_BATCH_SIZE", 500),
+                Config.getLong("WRITER_FLUSH_INTERVAL_MS", 200));
         
+        // Bounded admission on the ingest paths, work over the limit is refused instead of queued
+        int retryAfter = Config.getInt("INGEST_RETRY_AFTER_SECONDS", 1);
+        this.windTurbineGate = new IngestGate("WindTurbine", Config.getInt("INGEST_WINDTURBINE_MAX_IN_FLIGHT", 256), retryAfter, metrics);
+        IngestGate solarPanelGate = new IngestGate("SolarPanel", Config.getInt("INGEST_SOLARPANEL_MAX_IN_FLIGHT", 1024), retryAfter, metrics);
+
         // Create UDP server for solar panel data
-        this.udpServer = new UDPServer(vertx, db);
+        this.udpServer = new UDPServer(vertx, emf, writer, lastValues, dedup, metrics, dbExecutor, solarPanelGate,
+                Config.getBoolean("UDP_MULTI_RECORD", false));
+
+        // Optional binary protocol for every sensor kind, on its own port
+        if (Config.getInt("BINARY_UDP_PORT", 0) > 0) {
+            IngestGate binaryGate = new IngestGate("Binary", Config.getInt("INGEST_BINARY_MAX_IN_FLIGHT", 1024), retryAfter, metrics);
+            this.binaryUdpServer = new BinaryUDPServer(vertx, emf, writer, lastValues, dedup, metrics, dbExecutor, binaryGate);
+        }
     }
 
     public void start() {
@@ -44,46 +226,134 @@ public class VertxServer {
         // Add body handler to parse request bodies
         router.route().handler(BodyHandler.create());
 
+        // Every handler using the database is wrapped by the DbExecutor so that it runs off the event loop
+
         // Example route
-        router.get("/hello").handler(new ExampleHandler(this.db));
+        router.get("/hello").handler(dbExecutor.wrap(new ExampleHandler(this.emf)));
+
+        // The read-only routes below use the replica (when there is one) through readOnly()
         
         // Grid routes
-        router.get("/grids").handler(new GridsHandler(this.db));
-        router.get("/grid/:id").handler(new GridHandler(this.db));
-        router.get("/grid/:id/production").handler(new GridProductionHandler(this.db));
-        router.get("/grid/:id/consumption").handler(new GridConsumptionHandler(this.db));
+        router.get("/grids").handler(readOnly(new GridsHandler(this.emf)));
+        router.get("/grid/:id").handler(readOnly(new GridHandler(this.emf)));
+        router.get("/grid/:id/production").handler(readOnly(new GridProductionHandler(this.emf, this.store)));
+        router.get("/grid/:id/consumption").handler(readOnly(new GridConsumptionHandler(this.emf, this.store)));
         
         // Person routes
-        router.get("/persons").handler(new PersonsHandler(this.db));
-        router.get("/person/:id").handler(new PersonHandler(this.db));
-        router.post("/person/:id").handler(new PersonUpdateHandler(this.db));
-        router.delete("/person/:id").handler(new PersonDeleteHandler(this.db));
-        router.put("/person").handler(new PersonCreateHandler(this.db));
+        router.get("/persons").handler(readOnly(new PersonsHandler(this.emf)));
+        router.get("/person/:id").handler(readOnly(new PersonHandler(this.emf)));
+        router.post("/person/:id").handler(dbExecutor.wrap(new PersonUpdateHandler(this.emf)));
+        router.delete("/person/:id").handler(dbExecutor.wrap(new PersonDeleteHandler(this.emf)));
+        router.put("/person").handler(dbExecutor.wrap(new PersonCreateHandler(this.emf)));
         
         // Sensor routes
-        router.get("/sensor/:id").handler(new SensorHandler(this.db));
-        router.get("/sensors/:kind").handler(new SensorsKindHandler(this.db));
-        router.get("/consumers").handler(new ConsumersHandler(this.db));
-        router.get("/producers").handler(new ProducersHandler(this.db));
+        router.get("/sensor/:id").handler(readOnly(new SensorHandler(this.emf)));
+        router.get("/sensors/:kind").handler(readOnly(new SensorsKindHandler(this.emf)));
+        router.get("/consumers").handler(readOnly(new ConsumersHandler(this.emf)));
+        router.get("/producers").handler(readOnly(new ProducersHandler(this.emf)));
         // Uncomment the sensor update route
-        router.post("/sensor/:id").handler(new SensorUpdateHandler(this.db));
+        router.post("/sensor/:id").handler(dbExecutor.wrap(new SensorUpdateHandler(this.emf)));
         
         // Measurement routes - uncomment these routes
-        router.get("/measurement/:id").handler(new MeasurementHandler(this.db));
-        router.get("/measurement/:id/values").handler(new MeasurementValuesHandler(this.db));
+        router.get("/measurement/:id").handler(readOnly(new MeasurementHandler(this.emf)));
+        MeasurementValuesHandler valuesHandler = new MeasurementValuesHandler(this.emf, this.store,
+                Config.getInt("VALUES_AUTO_MAX_POINTS", 500), Config.getInt("VALUES_MAX_PAGE_SIZE", 10000),
+                Config.getLong("VALUES_STREAM_TIMEOUT_MS", 120000));
+        Handler<RoutingContext> values = readOnly(valuesHandler);
+        Handler<RoutingContext> streamedValues = streamExecutor.wrap(valuesHandler.withReadReplica(replica));
+        router.get("/measurement/:id/values").handler(context -> (MeasurementValuesHandler.streamsRawValues(context)
+                ? streamedValues : values).handle(context));
+        router.get("/measurement/:id/aggregate").handler(readOnly(new MeasurementAggregateHandler(this.emf, this.store)));
         
         // Ingress routes for sensor data
-        router.post("/ingress/windturbine").handler(new WindTurbineIngressHandler(this.db));
+        router.post("/ingress/windturbine").handler(windTurbineGate.wrap(
+                dbExecutor.wrap(new WindTurbineIngressHandler(this.emf, this.store, this.lastValues, this.dedup, this.wal))));
+        router.post("/ingress/windturbine/batch").handler(windTurbineGate.wrap(
+                dbExecutor.wrap(new WindTurbineBatchIngressHandler(this.emf, this.store, this.lastValues, this.dedup, this.wal,
+                        Config.getInt("WINDTURBINE_BATCH_MAX_RECORDS", 10000)))));
+
+        // Monitoring
+        router.get("/metrics").handler(new MetricsHandler(this.metrics));
+        new EventLoopMonitor(vertx, metrics,
+                Config.getLong("EVENT_LOOP_PROBE_INTERVAL_MS", 100),
+                Config.getLong("EVENT_LOOP_STALL_THRESHOLD_MS", 50))
+                .start(VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE);
         
+        // Follow the health and the lag of the read replica
+        if (replica != null) {
+            vertx.setPeriodic(Config.getLong("DB_REPLICA_CHECK_INTERVAL_MS", 2000),
+                    id -> dbExecutor.execute(replica::check));
+        }
+
+        // Keep creating the partitions of the next months while the server runs
+        vertx.setPeriodic(Config.getLong("PARTITION_MAINTENANCE_INTERVAL_MS", 3600000),
+                id -> dbExecutor.execute(partitions::maintain));
+
+        // Compress the old datapoints into the cold tier
+        if (coldTier != null) {
+            vertx.setPeriodic(Config.getLong("COLD_TIER_INTERVAL_MS", 600000),
+                    id -> dbExecutor.execute(coldTier::move));
+        }
+
+        // Delete the raw datapoints past their retention, a little at a time
+        if (retention != null) {
+            vertx.setPeriodic(Config.getLong("RETENTION_INTERVAL_MS", 60000),
+                    id -> dbExecutor.execute(retention::run));
+        }
+
+        // Start the datapoint writer, and flush its queue when the JVM stops
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writer.stop();
+            store.close();
+        }));
+
         // Start the UDP server
-        udpServer.start(12345);
+        udpServer.start(12345, Config.getInt("UDP_SOCKETS", 1));
+        if (binaryUdpServer != null) {
+            binaryUdpServer.start(Config.getInt("BINARY_UDP_PORT", 0), Config.getInt("UDP_SOCKETS", 1));
+        }
         
         // start the HTTP server
         vertx.createHttpServer().requestHandler(router).listen(8080);
         System.out.println("Server started on port 8080");
     }
 
-    public static void main(String[] args) {
-        new VertxServer().start();
+    // GET route served by the read replica while it is healthy, by the primary otherwise
+    private Handler<RoutingContext> readOnly(DatabaseHandler handler) {
+        return dbExecutor.wrap(handler.withReadReplica(replica));
+    }
+
+    private static void putIfSet(Map<String, String> properties, String property, String variable) {
+        String value = Config.get(variable, null);
+        if (value != null) {
+            properties.put(property, value);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "bench-parser".equals(args[0])) {
+            // solar panel datagram parsing throughput, old and current parser, without the database
+            ParserBenchmark.run(Config.getInt("BENCH_RECORDS", 1000000), Config.getInt("BENCH_ROUNDS", 5));
+            System.exit(0);
+        }
+        VertxServer server = new VertxServer();
+        if (args.length > 0 && "rebuild-rollups".equals(args[0])) {
+            // recompute the rollup tables from the datapoints, with the ingest stopped
+            Rollups.rebuild(server.emf);
+            System.exit(0);
+        }
+        if (args.length > 0 && "bench-store".equals(args[0])) {
+            // ingest and range read throughput of the configured DATAPOINT_STORE, on a measurement of its own
+            StoreBenchmark.run(server.emf, server.store,
+                    Config.getLong("BENCH_START", 4000000000L),
+                    Config.getInt("BENCH_POINTS", 1000000),
+                    Config.getInt("WRITER_BATCH_SIZE", 500),
+                    Config.getInt("BENCH_READS", 1000),
+                    Config.getLong("BENCH_READ_WINDOW", 86400));
+            server.store.close();
+            System.exit(0);
+        }
+        server.start();
     }
 }
@@ -0,0 +1,306 @@
+package fr.imta.smartgrid.server.cold;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Compressed storage of the old datapoints.
+// Datapoints older than `ageDays` full days are moved out of the datapoint table into
+// datapoint_chunk, one row per measurement and UTC day holding the points of the day compressed
+// with GorillaCodec (a minute series takes a few bytes per point instead of a ~60 bytes tuple).
+// Readers merge the chunks with the datapoints still in the table; a datapoint arriving late for a
+// day that was already moved stays in the table until the next run merges it into the chunk.
+// The rollups are not touched, they already count the moved points.
+public class ColdTier {
+    public static final long DAY = 86400;
+
+    private final EntityManagerFactory emf;
+    private final Metrics metrics;
+    private final int ageDays;
+    private final int chunksPerRun;
+
+    public ColdTier(EntityManagerFactory emf, Metrics metrics, int ageDays, int chunksPerRun) {
+        this.emf = emf;
+        this.metrics = metrics;
+        this.ageDays = ageDays;
+        this.chunksPerRun = chunksPerRun;
+    }
+
+    // Move up to `chunksPerRun` (measurement, day) groups of old datapoints into chunks
+    public void move() {
+        long now = System.currentTimeMillis() / 1000;
+        long cutoff = (now - now % DAY) - ageDays * DAY;
+
+        EntityManager db = emf.createEntityManager();
+        try {
+            @SuppressWarnings("unchecked")
+            List<Object[]> days = db.createNativeQuery(
+                    "SELECT DISTINCT measurement, timestamp - timestamp % " + DAY + " FROM datapoint " +
+                    "WHERE timestamp < ?1 ORDER BY 2, 1 LIMIT ?2")
+                    .setParameter(1, cutoff)
+                    .setParameter(2, chunksPerRun)
+                    .getResultList();
+
+            for (Object[] row : days) {
+                int measurement = ((Number) row[0]).intValue();
+                long day = ((Number) row[1]).longValue();
+                db.getTransaction().begin();
+                int moved = moveDay(db.unwrap(Connection.class), measurement, day);
+                db.getTransaction().commit();
+                metrics.add("cold.moved_points", moved);
+                metrics.increment("cold.chunks_written");
+            }
+        } catch (Exception e) {
+            metrics.increment("cold.failures");
+            System.err.println("Error moving datapoints to the cold tier: " + e.getMessage());
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    // The datapoints are deleted with RETURNING, the chunk holds exactly the rows removed
+    private int moveDay(Connection connection, int measurement, long day) throws SQLException {
+        Points points = new Points();
+
+        // points already in the chunk of the day
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT data FROM datapoint_chunk WHERE measurement = ? AND day = ? FOR UPDATE")) {
+            statement.setInt(1, measurement);
+            statement.setLong(2, day);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    GorillaCodec.decode(rs.getBytes(1), points::add);
+                }
+            }
+        }
+
+        int moved = 0;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM datapoint WHERE measurement = ? AND timestamp >= ? AND timestamp < ? RETURNING timestamp, value")) {
+            statement.setInt(1, measurement);
+            statement.setLong(2, day);
+            statement.setLong(3, day + DAY);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    points.add(rs.getLong(1), rs.getDouble(2));
+                    moved++;
+                }
+            }
+        }
+
+        if (points.size == 0) {
+            return 0;
+        }
+        points.sortAndDeduplicate();
+        byte[] data = GorillaCodec.encode(points.timestamps, points.values, points.size);
+        // the chunk is the only copy once the rows are deleted, a chunk that does not decode back to
+        // the same points rolls the move back
+        if (!GorillaCodec.matches(data, points.timestamps, points.values, points.size)) {
+            metrics.increment("cold.encoding_mismatches");
+            throw new SQLException("Chunk of measurement " + measurement + " for day " + day + " does not decode to its points");
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO datapoint_chunk (measurement, day, first_ts, last_ts, count, last_value, data) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                "ON CONFLICT (measurement, day) DO UPDATE SET first_ts = EXCLUDED.first_ts, last_ts = EXCLUDED.last_ts, " +
+                "count = EXCLUDED.count, last_value = EXCLUDED.last_value, data = EXCLUDED.data")) {
+            statement.setInt(1, measurement);
+            statement.setLong(2, day);
+            statement.setLong(3, points.timestamps[0]);
+            statement.setLong(4, points.timestamps[points.size - 1]);
+            statement.setInt(5, points.size);
+            statement.setDouble(6, points.values[points.size - 1]);
+            statement.setBytes(7, data);
+            statement.executeUpdate();
+        }
+        metrics.add("cold.bytes_written", data.length);
+        return moved;
+    }
+
+    // Stream the cold points of a measurement in [from, to], in timestamp order
+    public static void scan(EntityManager db, int measurement, long from, long to, GorillaCodec.PointConsumer consumer) {
+        @SuppressWarnings("unchecked")
+        List<byte[]> chunks = db.createNativeQuery(
+                "SELECT data FROM datapoint_chunk WHERE measurement = ?1 AND day >= ?2 AND day <= ?3 ORDER BY day")
+                .setParameter(1, measurement)
+                .setParameter(2, from - Math.floorMod(from, DAY))
+                .setParameter(3, to)
+                .getResultList();
+
+        for (byte[] chunk : chunks) {
+            GorillaCodec.decode(chunk, (timestamp, value) -> {
+                if (timestamp >= from && timestamp <= to) {
+                    consumer.accept(timestamp, value);
+                }
+            });
+        }
+    }
+
+    // The datapoints not already stored in a chunk. A day moved to the cold tier is no longer in the
+    // datapoint table, its unique (measurement, timestamp) index cannot reject a resent reading of it.
+    // One query per batch on the chunk primary key, the chunks of the recent days do not exist yet.
+    public static List<DataPoint> withoutStored(Connection connection, List<DataPoint> datapoints) throws SQLException {
+        Set<Chunk> days = new LinkedHashSet<>();
+        for (DataPoint datapoint : datapoints) {
+            days.add(new Chunk(datapoint.getMeasurement().getId(), Math.floorDiv(datapoint.getTimestamp(), DAY) * DAY));
+        }
+        Integer[] measurements = days.stream().map(Chunk::measurement).toArray(Integer[]::new);
+        Long[] starts = days.stream().map(Chunk::day).toArray(Long[]::new);
+
+        Set<Chunk> stored = new HashSet<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT measurement, data FROM datapoint_chunk " +
+                "WHERE (measurement, day) IN (SELECT * FROM unnest(?::int[], ?::bigint[]))")) {
+            statement.setArray(1, connection.createArrayOf("int4", measurements));
+            statement.setArray(2, connection.createArrayOf("int8", starts));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    int measurement = rs.getInt(1);
+                    GorillaCodec.decode(rs.getBytes(2), (timestamp, value) -> stored.add(new Chunk(measurement, timestamp)));
+                }
+            }
+        }
+        if (stored.isEmpty()) {
+            return datapoints;
+        }
+        return datapoints.stream()
+                .filter(datapoint -> !stored.contains(new Chunk(datapoint.getMeasurement().getId(), datapoint.getTimestamp())))
+                .toList();
+    }
+
+    // Whether the chunk of the day holds a point of the measurement at `timestamp`
+    public static boolean contains(EntityManager db, int measurement, long timestamp) {
+        @SuppressWarnings("unchecked")
+        List<byte[]> chunks = db.createNativeQuery(
+                "SELECT data FROM datapoint_chunk WHERE measurement = ?1 AND day = ?2 AND ?3 BETWEEN first_ts AND last_ts")
+                .setParameter(1, measurement)
+                .setParameter(2, Math.floorDiv(timestamp, DAY) * DAY)
+                .setParameter(3, timestamp)
+                .getResultList();
+        boolean[] found = { false };
+        for (byte[] chunk : chunks) {
+            GorillaCodec.decode(chunk, (t, value) -> found[0] |= t == timestamp);
+        }
+        return found[0];
+    }
+
+    // (measurement, day start) of a chunk, or (measurement, timestamp) of a point
+    private record Chunk(int measurement, long day) {
+    }
+
+    // Cold points of a measurement in [from, to] read one chunk at a time through a JDBC cursor, so at
+    // most a day of points is in memory. Needs a transaction on `connection` (Postgres cursors).
+    public static final class Cursor implements AutoCloseable {
+        private final PreparedStatement statement;
+        private final ResultSet chunks;
+        private final long from;
+        private final long to;
+        private final Points points = new Points();
+        private int index;
+
+        public Cursor(Connection connection, int measurement, long from, long to) throws SQLException {
+            this.from = from;
+            this.to = to;
+            statement = connection.prepareStatement(
+                    "SELECT data FROM datapoint_chunk WHERE measurement = ? AND day >= ? AND day <= ? ORDER BY day");
+            statement.setFetchSize(1);
+            statement.setInt(1, measurement);
+            statement.setLong(2, from - Math.floorMod(from, DAY));
+            statement.setLong(3, to);
+            chunks = statement.executeQuery();
+            load();
+        }
+
+        public boolean hasNext() {
+            return index < points.size;
+        }
+
+        public long timestamp() {
+            return points.timestamps[index];
+        }
+
+        public double value() {
+            return points.values[index];
+        }
+
+        public void next() throws SQLException {
+            index++;
+            if (index == points.size) {
+                load();
+            }
+        }
+
+        // decode the next chunk holding points of the range
+        private void load() throws SQLException {
+            points.size = 0;
+            index = 0;
+            while (points.size == 0 && chunks.next()) {
+                GorillaCodec.decode(chunks.getBytes(1), (timestamp, value) -> {
+                    if (timestamp >= from && timestamp <= to) {
+                        points.add(timestamp, value);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            chunks.close();
+            statement.close();
+        }
+    }
+
+    // Growable (timestamp, value) arrays
+    private static final class Points {
+        long[] timestamps = new long[64];
+        double[] values = new double[64];
+        int size;
+
+        void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        // sort by timestamp and keep one point per timestamp
+        void sortAndDeduplicate() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(timestamps[a], timestamps[b]));
+            long[] sortedTimestamps = new long[Math.max(1, size)];
+            double[] sortedValues = new double[Math.max(1, size)];
+            int count = 0;
+            for (int index : order) {
+                if (count > 0 && sortedTimestamps[count - 1] == timestamps[index]) {
+                    continue;
+                }
+                sortedTimestamps[count] = timestamps[index];
+                sortedValues[count] = values[index];
+                count++;
+            }
+            timestamps = sortedTimestamps;
+            values = sortedValues;
+            size = count;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package fr.imta.smartgrid.server.cold;
+
+import java.util.Arrays;
+
+// Compression of a series of (timestamp, value) points sorted by timestamp, as in Facebook's Gorilla.
+//  - timestamps: the first one in full, then the delta of the deltas with a variable length prefix,
+//    a regular series (one reading every 60 s) costs 1 bit per point
+//  - values: the first one in full, then the XOR with the previous value, only its meaningful bits
+//    are written and the window of the previous XOR is reused when it fits
+// Layout: count (32 bits) | first timestamp (64) | first value (64) | the encoded points
+public final class GorillaCodec {
+    private GorillaCodec() {
+    }
+
+    public interface PointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    public static byte[] encode(long[] timestamps, double[] values, int count) {
+        BitWriter out = new BitWriter(16 + count * 2);
+        out.write(count, 32);
+        if (count == 0) {
+            return out.toByteArray();
+        }
+
+        out.write(timestamps[0], 64);
+        out.write(Double.doubleToRawLongBits(values[0]), 64);
+
+        long previousTimestamp = timestamps[0];
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - previousTimestamp;
+            long deltaOfDelta = delta - previousDelta;
+            if (deltaOfDelta == 0) {
+                out.write(0, 1);
+            } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+                out.write(0b10, 2);
+                out.write(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+                out.write(0b110, 3);
+                out.write(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+                out.write(0b1110, 4);
+                out.write(deltaOfDelta, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(deltaOfDelta, 64);
+            }
+            previousTimestamp = timestamps[i];
+            previousDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            if (xor == 0) {
+                out.write(0, 1);
+            } else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                    // fits in the window of the previous XOR
+                    out.write(0b10, 2);
+                    out.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                } else {
+                    int meaningful = 64 - leading - trailing;
+                    out.write(0b11, 2);
+                    out.write(leading, 5);
+                    out.write(meaningful - 1, 6); // 1..64 stored as 0..63
+                    out.write(xor >>> trailing, meaningful);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+            previousBits = bits;
+        }
+        return out.toByteArray();
+    }
+
+    // True if `data` decodes to exactly these points (same timestamps, same value bits)
+    public static boolean matches(byte[] data, long[] timestamps, double[] values, int count) {
+        if (count(data) != count) {
+            return false;
+        }
+        int[] index = { 0 };
+        boolean[] same = { true };
+        decode(data, (timestamp, value) -> {
+            int i = index[0]++;
+            if (timestamp != timestamps[i] || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(values[i])) {
+                same[0] = false;
+            }
+        });
+        return same[0];
+    }
+
+    public static int count(byte[] data) {
+        return (int) new BitReader(data).read(32);
+    }
+
+    public static void decode(byte[] data, PointConsumer consumer) {
+        BitReader in = new BitReader(data);
+        int count = (int) in.read(32);
+        if (count == 0) {
+            return;
+        }
+
+        long timestamp = in.read(64);
+        long bits = in.read(64);
+        consumer.accept(timestamp, Double.longBitsToDouble(bits));
+
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            long deltaOfDelta;
+            if (in.read(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (in.read(1) == 0) {
+                deltaOfDelta = in.readSigned(7);
+            } else if (in.read(1) == 0) {
+                deltaOfDelta = in.readSigned(9);
+            } else if (in.read(1) == 0) {
+                deltaOfDelta = in.readSigned(12);
+            } else {
+                deltaOfDelta = in.read(64);
+            }
+            delta += deltaOfDelta;
+            timestamp += delta;
+
+            if (in.read(1) == 1) {
+                if (in.read(1) == 1) {
+                    leading = (int) in.read(5);
+                    int meaningful = (int) in.read(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                bits ^= in.read(64 - leading - trailing) << trailing;
+            }
+            consumer.accept(timestamp, Double.longBitsToDouble(bits));
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] bytes;
+        private long position; // in bits
+
+        BitWriter(int capacity) {
+            bytes = new byte[Math.max(8, capacity)];
+        }
+
+        // write the `length` low bits of `value`, most significant first
+        void write(long value, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                int index = (int) (position >>> 3);
+                if (index == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    bytes[index] |= (byte) (0x80 >>> (position & 7));
+                }
+                position++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (int) ((position + 7) >>> 3));
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] bytes;
+        private long position;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int length) {
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                int bit = (bytes[(int) (position >>> 3)] >>> (7 - (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return value;
+        }
+
+        long readSigned(int length) {
+            long value = read(length);
+            // sign extend
+            return (value << (64 - length)) >> (64 - length);
+        }
+    }
+}
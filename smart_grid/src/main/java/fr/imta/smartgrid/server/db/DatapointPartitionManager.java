@@ -0,0 +1,210 @@
+package fr.imta.smartgrid.server.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.imta.smartgrid.server.metrics.Metrics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Keeps `datapoint` partitioned by month on its timestamp (epoch seconds, months in UTC).
+//  - one partition `datapoint_pYYYYMM` per month, created `monthsAhead` months in advance
+//  - rows that landed in the default partition (month without a partition yet) are moved
+//    into the partition created for their month
+//  - with `retentionMonths` > 0, partitions entirely older than that are detached and dropped
+//  - with `convert`, an existing unpartitioned datapoint table is converted at startup
+// A query with a timestamp range (or ORDER BY timestamp DESC LIMIT 1 on a measurement) only reads
+// the partitions of that range, its cost depends on the window and not on the whole history.
+public class DatapointPartitionManager {
+    private static final String PARENT = "datapoint";
+    private static final String DEFAULT_PARTITION = "datapoint_default";
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private final EntityManagerFactory emf;
+    private final Metrics metrics;
+    private final int monthsAhead;
+    private final int retentionMonths;
+    private final boolean convert;
+    private final AtomicInteger partitions = new AtomicInteger();
+
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    public DatapointPartitionManager(EntityManagerFactory emf, Metrics metrics, int monthsAhead, int retentionMonths, boolean convert) {
+        this.emf = emf;
+        this.metrics = metrics;
+        this.monthsAhead = monthsAhead;
+        this.retentionMonths = retentionMonths;
+        this.convert = convert;
+
+        metrics.gauge("datapoint_partitions.count", partitions::get);
+    }
+
+    // Create the missing partitions and drop the expired ones, safe to call repeatedly
+    public void maintain() {
+        try {
+            if (!inTransaction(this::isPartitioned)) {
+                if (!convert) {
+                    System.err.println("datapoint is not partitioned, set PARTITION_CONVERT=true to convert it");
+                    return;
+                }
+                inTransaction(this::convertTable);
+            }
+
+            YearMonth now = YearMonth.now(ZoneOffset.UTC);
+            TreeSet<YearMonth> months = new TreeSet<>(inTransaction(this::monthsInDefaultPartition));
+            for (int i = 0; i <= monthsAhead; i++) {
+                months.add(now.plusMonths(i));
+            }
+            List<YearMonth> existing = inTransaction(this::existingPartitions);
+            for (YearMonth month : months) {
+                if (!existing.contains(month)) {
+                    inTransaction(connection -> createPartition(connection, month));
+                    metrics.increment("datapoint_partitions.created");
+                    System.out.println("Created partition " + name(month));
+                }
+            }
+
+            if (retentionMonths > 0) {
+                YearMonth oldest = now.minusMonths(retentionMonths);
+                for (YearMonth month : inTransaction(this::existingPartitions)) {
+                    if (month.isBefore(oldest)) {
+                        inTransaction(connection -> dropPartition(connection, month));
+                        metrics.increment("datapoint_partitions.dropped");
+                        System.out.println("Dropped partition " + name(month));
+                    }
+                }
+            }
+
+            partitions.set(inTransaction(this::existingPartitions).size());
+        } catch (Exception e) {
+            metrics.increment("datapoint_partitions.failures");
+            System.err.println("Error maintaining datapoint partitions: " + e.getMessage());
+        }
+    }
+
+    private Boolean isPartitioned(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT relkind FROM pg_class WHERE relname = '" + PARENT + "'")) {
+            return rs.next() && "p".equals(rs.getString(1));
+        }
+    }
+
+    // Swap the plain table for a partitioned one with the same columns, the rows go to the default
+    // partition and are spread over the monthly partitions by maintain(). The ids are always given
+    // by the inserts (DataPointIds), the id column has no default.
+    private Void convertTable(Connection connection) throws SQLException {
+        System.out.println("Converting datapoint to a partitioned table");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE datapoint RENAME TO datapoint_unpartitioned");
+            // index names are unique per schema, free them for the new table
+            statement.execute("ALTER INDEX IF EXISTS datapoint_pkey RENAME TO datapoint_unpartitioned_pkey");
+            statement.execute("ALTER INDEX IF EXISTS datapoint_measurement_timestamp_key RENAME TO datapoint_unpartitioned_measurement_timestamp_key");
+            statement.execute(
+                    "CREATE TABLE datapoint (" +
+                    "id bigint NOT NULL, " +
+                    "timestamp bigint NOT NULL, " +
+                    "value double precision, " +
+                    "measurement integer, " +
+                    "CONSTRAINT datapoint_pkey PRIMARY KEY (id, timestamp), " +
+                    "CONSTRAINT datapoint_measurement_timestamp_key UNIQUE (measurement, timestamp) INCLUDE (value), " +
+                    "CONSTRAINT fk_datapoint_measurement FOREIGN KEY (measurement) REFERENCES measurement(id)" +
+                    ") PARTITION BY RANGE (timestamp)");
+            statement.execute("CREATE TABLE " + DEFAULT_PARTITION + " PARTITION OF datapoint DEFAULT");
+            statement.execute(
+                    "INSERT INTO datapoint (id, timestamp, value, measurement) " +
+                    "SELECT id, timestamp, value, measurement FROM datapoint_unpartitioned WHERE timestamp IS NOT NULL " +
+                    "ON CONFLICT DO NOTHING");
+            statement.execute("DROP TABLE datapoint_unpartitioned");
+        }
+        return null;
+    }
+
+    private List<YearMonth> monthsInDefaultPartition(Connection connection) throws SQLException {
+        List<YearMonth> months = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT DISTINCT to_char(to_timestamp(timestamp) AT TIME ZONE 'UTC', 'YYYYMM') FROM " + DEFAULT_PARTITION)) {
+            while (rs.next()) {
+                months.add(YearMonth.parse(rs.getString(1), SUFFIX));
+            }
+        }
+        return months;
+    }
+
+    private List<YearMonth> existingPartitions(Connection connection) throws SQLException {
+        List<YearMonth> months = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT c.relname FROM pg_inherits i " +
+                        "JOIN pg_class c ON c.oid = i.inhrelid " +
+                        "JOIN pg_class p ON p.oid = i.inhparent " +
+                        "WHERE p.relname = '" + PARENT + "'")) {
+            while (rs.next()) {
+                String name = rs.getString(1);
+                if (name.matches(PARENT + "_p\\d{6}")) {
+                    months.add(YearMonth.parse(name.substring(PARENT.length() + 2), SUFFIX));
+                }
+            }
+        }
+        return months;
+    }
+
+    // The partition is built detached, filled with the rows of its month found in the default
+    // partition, then attached: a plain CREATE ... PARTITION OF fails if the default holds such rows
+    private Void createPartition(Connection connection, YearMonth month) throws SQLException {
+        String name = name(month);
+        long from = start(month);
+        long to = start(month.plusMonths(1));
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE " + name + " (LIKE " + PARENT + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+            statement.execute(
+                    "WITH moved AS (DELETE FROM " + DEFAULT_PARTITION + " WHERE timestamp >= " + from + " AND timestamp < " + to + " RETURNING *) " +
+                    "INSERT INTO " + name + " SELECT * FROM moved");
+            statement.execute("ALTER TABLE " + PARENT + " ATTACH PARTITION " + name + " FOR VALUES FROM (" + from + ") TO (" + to + ")");
+        }
+        return null;
+    }
+
+    private Void dropPartition(Connection connection, YearMonth month) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + PARENT + " DETACH PARTITION " + name(month));
+            statement.execute("DROP TABLE " + name(month));
+        }
+        return null;
+    }
+
+    private <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            T result = work.run(db.unwrap(Connection.class));
+            db.getTransaction().commit();
+            return result;
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    private static String name(YearMonth month) {
+        return PARENT + "_p" + month.format(SUFFIX);
+    }
+
+    // first second of the month, UTC
+    private static long start(YearMonth month) {
+        return month.atDay(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+}
@@ -0,0 +1,89 @@
+package fr.imta.smartgrid.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Brings the schema up to date at startup.
+// The applied versions are recorded in schema_version, each pending migration runs in its own
+// transaction together with its schema_version row, so a failed migration leaves nothing behind
+// and is retried at the next start. An advisory lock keeps two servers from migrating at once.
+public class MigrationRunner {
+    private static final long LOCK_ID = 0x534d4152545f4744L; // any constant shared by the servers
+
+    private final EntityManagerFactory emf;
+
+    public MigrationRunner(EntityManagerFactory emf) {
+        this.emf = emf;
+    }
+
+    // Apply the pending migrations, throws if one of them fails
+    public void run(List<Migrations.Migration> migrations) throws SQLException {
+        inTransaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS schema_version (" +
+                        "version integer PRIMARY KEY, " +
+                        "description varchar(255), " +
+                        "applied_at timestamptz DEFAULT now())");
+            }
+        });
+
+        for (Migrations.Migration migration : migrations) {
+            inTransaction(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SELECT pg_advisory_xact_lock(" + LOCK_ID + ")");
+                }
+                if (isApplied(connection, migration.version())) {
+                    return;
+                }
+
+                System.out.println("Applying migration " + migration.version() + ": " + migration.description());
+                try (Statement statement = connection.createStatement()) {
+                    for (String sql : migration.statements()) {
+                        statement.execute(sql);
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "INSERT INTO schema_version (version, description) VALUES (?, ?)")) {
+                    statement.setInt(1, migration.version());
+                    statement.setString(2, migration.description());
+                    statement.executeUpdate();
+                }
+            });
+        }
+    }
+
+    private boolean isApplied(Connection connection, int version) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM schema_version WHERE version = ?")) {
+            statement.setInt(1, version);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private interface SqlWork {
+        void run(Connection connection) throws SQLException;
+    }
+
+    private void inTransaction(SqlWork work) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            work.run(db.unwrap(Connection.class));
+            db.getTransaction().commit();
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fr.imta.smartgrid.server.db;
+
+import java.util.List;
+
+// Schema changes applied on top of init_database.sql, in version order.
+// A migration is never edited once released, add a new one instead: its statements are plain SQL
+// literals, never built from code that may change later (Rollups, DataPoint...). Every statement must also be
+// safe to run on a database that already has the change (IF NOT EXISTS...): databases created from
+// a recent init_database.sql already contain some of them.
+public final class Migrations {
+    private Migrations() {
+    }
+
+    public record Migration(int version, String description, List<String> statements) {
+    }
+
+    public static final List<Migration> ALL = List.of(
+            new Migration(1, "index measurements by sensor and name", List.of(
+                    "CREATE INDEX IF NOT EXISTS measurement_sensor_name_idx ON measurement (sensor, name)")),
+
+            new Migration(2, "index sensors and persons by grid", List.of(
+                    "CREATE INDEX IF NOT EXISTS sensor_grid_idx ON sensor (grid)",
+                    "CREATE INDEX IF NOT EXISTS person_grid_idx ON person (grid)")),
+
+            // the primary key (person_id, sensor_id) does not help to find the owners of a sensor
+            new Migration(3, "index person_sensor by sensor", List.of(
+                    "CREATE INDEX IF NOT EXISTS person_sensor_sensor_id_idx ON person_sensor (sensor_id)")),
+
+            // One index for the ingest deduplication, the ON CONFLICT of the inserts and the range scans
+            // of a measurement; with the value included the scans do not read the table
+            new Migration(4, "unique covering index on datapoint (measurement, timestamp)", List.of(
+                    "DELETE FROM datapoint d USING datapoint d2 " +
+                    "WHERE d.measurement = d2.measurement AND d.timestamp = d2.timestamp AND d.id > d2.id",
+                    "ALTER TABLE datapoint DROP CONSTRAINT IF EXISTS datapoint_measurement_timestamp_key",
+                    "ALTER TABLE datapoint ADD CONSTRAINT datapoint_measurement_timestamp_key " +
+                    "UNIQUE (measurement, timestamp) INCLUDE (value)")),
+
+            // the rollup tables (see Rollups) filled from the existing datapoints
+            new Migration(5, "rollup tables at 1m, 1h and 1d", List.of(
+                    "CREATE TABLE IF NOT EXISTS datapoint_rollup_1m (" +
+                    "measurement integer NOT NULL REFERENCES measurement(id), " +
+                    "bucket bigint NOT NULL, " +
+                    "min double precision, " +
+                    "max double precision, " +
+                    "sum double precision, " +
+                    "count bigint NOT NULL, " +
+                    "first_ts bigint NOT NULL, " +
+                    "first double precision, " +
+                    "last_ts bigint NOT NULL, " +
+                    "last double precision, " +
+                    "PRIMARY KEY (measurement, bucket))",
+                    "DELETE FROM datapoint_rollup_1m",
+                    "INSERT INTO datapoint_rollup_1m AS r (measurement, bucket, min, max, sum, count, first_ts, first, last_ts, last) " +
+                    "SELECT measurement, timestamp - timestamp % 60, " +
+                    "min(value), max(value), sum(value), count(*), " +
+                    "min(timestamp), (array_agg(value ORDER BY timestamp))[1], " +
+                    "max(timestamp), (array_agg(value ORDER BY timestamp DESC))[1] " +
+                    "FROM datapoint GROUP BY 1, 2 " +
+                    "ON CONFLICT (measurement, bucket) DO UPDATE SET " +
+                    "min = LEAST(r.min, EXCLUDED.min), " +
+                    "max = GREATEST(r.max, EXCLUDED.max), " +
+                    "sum = r.sum + EXCLUDED.sum, " +
+                    "count = r.count + EXCLUDED.count, " +
+                    "first = CASE WHEN EXCLUDED.first_ts < r.first_ts THEN EXCLUDED.first ELSE r.first END, " +
+                    "first_ts = LEAST(r.first_ts, EXCLUDED.first_ts), " +
+                    "last = CASE WHEN EXCLUDED.last_ts >= r.last_ts THEN EXCLUDED.last ELSE r.last END, " +
+                    "last_ts = GREATEST(r.last_ts, EXCLUDED.last_ts)",
+                    "CREATE TABLE IF NOT EXISTS datapoint_rollup_1h (" +
+                    "measurement integer NOT NULL REFERENCES measurement(id), " +
+                    "bucket bigint NOT NULL, " +
+                    "min double precision, " +
+                    "max double precision, " +
+                    "sum double precision, " +
+                    "count bigint NOT NULL, " +
+                    "first_ts bigint NOT NULL, " +
+                    "first double precision, " +
+                    "last_ts bigint NOT NULL, " +
+                    "last double precision, " +
+                    "PRIMARY KEY (measurement, bucket))",
+                    "DELETE FROM datapoint_rollup_1h",
+                    "INSERT INTO datapoint_rollup_1h AS r (measurement, bucket, min, max, sum, count, first_ts, first, last_ts, last) " +
+                    "SELECT measurement, timestamp - timestamp % 3600, " +
+                    "min(value), max(value), sum(value), count(*), " +
+                    "min(timestamp), (array_agg(value ORDER BY timestamp))[1], " +
+                    "max(timestamp), (array_agg(value ORDER BY timestamp DESC))[1] " +
+                    "FROM datapoint GROUP BY 1, 2 " +
+                    "ON CONFLICT (measurement, bucket) DO UPDATE SET " +
+                    "min = LEAST(r.min, EXCLUDED.min), " +
+                    "max = GREATEST(r.max, EXCLUDED.max), " +
+                    "sum = r.sum + EXCLUDED.sum, " +
+                    "count = r.count + EXCLUDED.count, " +
+                    "first = CASE WHEN EXCLUDED.first_ts < r.first_ts THEN EXCLUDED.first ELSE r.first END, " +
+                    "first_ts = LEAST(r.first_ts, EXCLUDED.first_ts), " +
+                    "last = CASE WHEN EXCLUDED.last_ts >= r.last_ts THEN EXCLUDED.last ELSE r.last END, " +
+                    "last_ts = GREATEST(r.last_ts, EXCLUDED.last_ts)",
+                    "CREATE TABLE IF NOT EXISTS datapoint_rollup_1d (" +
+                    "measurement integer NOT NULL REFERENCES measurement(id), " +
+                    "bucket bigint NOT NULL, " +
+                    "min double precision, " +
+                    "max double precision, " +
+                    "sum double precision, " +
+                    "count bigint NOT NULL, " +
+                    "first_ts bigint NOT NULL, " +
+                    "first double precision, " +
+                    "last_ts bigint NOT NULL, " +
+                    "last double precision, " +
+                    "PRIMARY KEY (measurement, bucket))",
+                    "DELETE FROM datapoint_rollup_1d",
+                    "INSERT INTO datapoint_rollup_1d AS r (measurement, bucket, min, max, sum, count, first_ts, first, last_ts, last) " +
+                    "SELECT measurement, timestamp - timestamp % 86400, " +
+                    "min(value), max(value), sum(value), count(*), " +
+                    "min(timestamp), (array_agg(value ORDER BY timestamp))[1], " +
+                    "max(timestamp), (array_agg(value ORDER BY timestamp DESC))[1] " +
+                    "FROM datapoint GROUP BY 1, 2 " +
+                    "ON CONFLICT (measurement, bucket) DO UPDATE SET " +
+                    "min = LEAST(r.min, EXCLUDED.min), " +
+                    "max = GREATEST(r.max, EXCLUDED.max), " +
+                    "sum = r.sum + EXCLUDED.sum, " +
+                    "count = r.count + EXCLUDED.count, " +
+                    "first = CASE WHEN EXCLUDED.first_ts < r.first_ts THEN EXCLUDED.first ELSE r.first END, " +
+                    "first_ts = LEAST(r.first_ts, EXCLUDED.first_ts), " +
+                    "last = CASE WHEN EXCLUDED.last_ts >= r.last_ts THEN EXCLUDED.last ELSE r.last END, " +
+                    "last_ts = GREATEST(r.last_ts, EXCLUDED.last_ts)")),
+
+            // cold tier, see ColdTier
+            new Migration(6, "compressed datapoint chunks", List.of(
+                    "CREATE TABLE IF NOT EXISTS datapoint_chunk (" +
+                    "measurement integer NOT NULL REFERENCES measurement(id), " +
+                    "day bigint NOT NULL, " +
+                    "first_ts bigint NOT NULL, " +
+                    "last_ts bigint NOT NULL, " +
+                    "count integer NOT NULL, " +
+                    "last_value double precision, " +
+                    "data bytea NOT NULL, " +
+                    "PRIMARY KEY (measurement, day))")),
+
+            // 64-bit ids reserved by blocks of DataPoint.ID_ALLOCATION_SIZE (1000 when released), see DataPointIds.
+            // The column change rewrites the datapoint partitions, it takes a while on a large table.
+            // The sequence restarts after the highest id so the first block cannot reuse an id.
+            new Migration(7, "bigint datapoint ids allocated by blocks", List.of(
+                    "ALTER SEQUENCE datapoint_id_seq AS bigint MAXVALUE 9223372036854775807 " +
+                    "INCREMENT BY 1000",
+                    "ALTER TABLE datapoint ALTER COLUMN id TYPE bigint",
+                    "SELECT setval('datapoint_id_seq', (SELECT COALESCE(max(id), 0) FROM datapoint) + 1000)")),
+
+            // Latest datapoint of each measurement, kept up to date by PostgresDataPointStore.insert.
+            // Filled from the datapoints, or from the newest cold chunk when a measurement has none left.
+            new Migration(8, "latest value of each measurement", List.of(
+                    "CREATE TABLE IF NOT EXISTS measurement_latest (" +
+                    "measurement integer PRIMARY KEY REFERENCES measurement(id), " +
+                    "timestamp bigint NOT NULL, " +
+                    "value double precision)",
+                    "INSERT INTO measurement_latest (measurement, timestamp, value) " +
+                    "SELECT DISTINCT ON (measurement) measurement, timestamp, value FROM (" +
+                    "SELECT measurement, timestamp, value FROM datapoint " +
+                    "UNION ALL SELECT measurement, last_ts, last_value FROM datapoint_chunk) d " +
+                    "WHERE measurement IS NOT NULL " +
+                    "ORDER BY measurement, timestamp DESC " +
+                    "ON CONFLICT (measurement) DO UPDATE SET timestamp = EXCLUDED.timestamp, value = EXCLUDED.value " +
+                    "WHERE EXCLUDED.timestamp >= measurement_latest.timestamp")),
+
+            // Row written on the primary by ReadReplica.check(), its age on the replica is the replica lag
+            new Migration(9, "replica heartbeat", List.of(
+                    "CREATE TABLE IF NOT EXISTS replica_heartbeat (" +
+                    "id integer PRIMARY KEY, " +
+                    "written_at bigint NOT NULL)")),
+
+            // A nextval of datapoint_id_seq reserves a block of 1000 ids since migration 7, a default
+            // nextval would burn a block per row and skip past the blocks handed out by DataPointIds.
+            // Every insert gives its id, one without id now fails instead.
+            new Migration(10, "no default datapoint id", List.of(
+                    "ALTER TABLE datapoint ALTER COLUMN id DROP DEFAULT")));
+}
@@ -0,0 +1,98 @@
+package fr.imta.smartgrid.server.db;
+
+import java.util.List;
+
+import fr.imta.smartgrid.server.metrics.Metrics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Routes the read-only queries to a streaming replica of the database while it is usable.
+// check() runs periodically: the replica is used when its WAL receiver is streaming and its lag is
+// at most `maxLagMillis`, otherwise the reads go to the primary until a later check succeeds.
+// The lag is measured with a heartbeat: each check writes the current time (of this JVM, so the
+// clocks of the servers do not matter) in replica_heartbeat on the primary, then reads the row back
+// from the replica. A replica that stopped receiving WAL sees an ever older row, even when it
+// replayed everything it received; the lag is overestimated by at most one check interval.
+public class ReadReplica {
+    private final EntityManagerFactory primary;
+    private final EntityManagerFactory replica;
+    private final long maxLagMillis;
+    private final Metrics metrics;
+
+    private volatile boolean healthy;
+    private volatile long lagMillis = -1;
+
+    public ReadReplica(EntityManagerFactory primary, EntityManagerFactory replica, long maxLagMillis, Metrics metrics) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxLagMillis = maxLagMillis;
+        this.metrics = metrics;
+
+        metrics.gauge("db.replica.healthy", () -> healthy ? 1 : 0);
+        metrics.gauge("db.replica.lag_ms", () -> lagMillis);
+    }
+
+    // Where a read-only query should go now
+    public EntityManagerFactory forReads() {
+        if (healthy) {
+            metrics.increment("db.replica.reads");
+            return replica;
+        }
+        metrics.increment("db.replica.fallbacks");
+        return primary;
+    }
+
+    public void check() {
+        boolean wasHealthy = healthy;
+        writeHeartbeat();
+        EntityManager db = replica.createEntityManager();
+        try {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = db.createNativeQuery(
+                    "SELECT NOT pg_is_in_recovery() OR COALESCE((SELECT status = 'streaming' FROM pg_stat_wal_receiver), false), " +
+                    "(SELECT written_at FROM replica_heartbeat WHERE id = 1)")
+                    .getResultList();
+            boolean streaming = (Boolean) rows.get(0)[0];
+            Number heartbeat = (Number) rows.get(0)[1];
+            lagMillis = heartbeat == null ? -1 : Math.max(0, System.currentTimeMillis() - heartbeat.longValue());
+            healthy = streaming && heartbeat != null && lagMillis <= maxLagMillis;
+            if (!healthy && wasHealthy) {
+                System.err.println(streaming
+                        ? "Read replica is " + lagMillis + " ms behind, reading from the primary"
+                        : "Read replica is not streaming from the primary, reading from the primary");
+            }
+        } catch (Exception e) {
+            metrics.increment("db.replica.check_failures");
+            healthy = false;
+            lagMillis = -1;
+            if (wasHealthy) {
+                System.err.println("Read replica is unavailable, reading from the primary: " + e.getMessage());
+            }
+        } finally {
+            db.close();
+        }
+        if (healthy && !wasHealthy) {
+            System.out.println("Reading from the replica, " + lagMillis + " ms behind the primary");
+        }
+    }
+
+    // A failed write leaves the previous heartbeat, the replica then looks more and more behind
+    private void writeHeartbeat() {
+        EntityManager db = primary.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            db.createNativeQuery("INSERT INTO replica_heartbeat (id, written_at) VALUES (1, ?1) " +
+                    "ON CONFLICT (id) DO UPDATE SET written_at = EXCLUDED.written_at")
+                    .setParameter(1, System.currentTimeMillis())
+                    .executeUpdate();
+            db.getTransaction().commit();
+        } catch (Exception e) {
+            metrics.increment("db.replica.heartbeat_failures");
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package fr.imta.smartgrid.server.db;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.imta.smartgrid.server.cold.ColdTier;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Deletes the raw datapoints (and cold tier chunks) older than the retention of their measurement.
+// The rollups are never deleted, they are the downsampled history kept forever.
+//
+// Policies are `selector=days` pairs separated by commas, e.g. `name:temperature=7,kind:WindTurbine=90,*=30`:
+//  - `name:<measurement name>` applies to the measurements with that name
+//  - `kind:<SolarPanel|WindTurbine|EVCharger>` applies to the measurements of the sensors of that kind
+//  - `*` applies to every other measurement
+// A name policy wins over a kind policy, which wins over `*`. Measurements without a policy are kept.
+//
+// The rows are deleted in batches of `batchSize`, each in its own short transaction, so the ingest
+// never waits long on a lock. A run stops after `maxBatchesPerRun` batches, or as soon as Postgres
+// has more than `maxActiveQueries` other active queries; the next run continues where it stopped.
+public class RetentionJob {
+    private static final String DEFAULT_SELECTOR = "*";
+
+    private final EntityManagerFactory emf;
+    private final Metrics metrics;
+    private final Map<String, Integer> policies;
+    private final int batchSize;
+    private final int maxBatchesPerRun;
+    private final int maxActiveQueries;
+    private final AtomicInteger behind = new AtomicInteger();
+
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    public RetentionJob(EntityManagerFactory emf, Metrics metrics, String policies, int batchSize, int maxBatchesPerRun, int maxActiveQueries) {
+        this.emf = emf;
+        this.metrics = metrics;
+        this.policies = parse(policies);
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+        this.maxActiveQueries = maxActiveQueries;
+
+        // number of retention days that still had expired rows at the end of the last run
+        metrics.gauge("retention.behind", behind::get);
+    }
+
+    // `selector=days` pairs, the days may be written `30` or `30d`
+    static Map<String, Integer> parse(String policies) {
+        Map<String, Integer> parsed = new TreeMap<>();
+        for (String policy : policies.split(",")) {
+            if (policy.isBlank()) {
+                continue;
+            }
+            int separator = policy.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid retention policy: " + policy);
+            }
+            String selector = policy.substring(0, separator).trim();
+            String days = policy.substring(separator + 1).trim();
+            if (days.endsWith("d")) {
+                days = days.substring(0, days.length() - 1);
+            }
+            if (!selector.equals(DEFAULT_SELECTOR) && !selector.startsWith("name:") && !selector.startsWith("kind:")) {
+                throw new IllegalArgumentException("Invalid retention policy selector: " + selector);
+            }
+            parsed.put(selector, Integer.parseInt(days));
+        }
+        return parsed;
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis() / 1000;
+        int batches = 0;
+        long deletedPoints = 0;
+        long deletedChunks = 0;
+        int remaining = 0;
+        try {
+            // the measurements of each retention, shortest first
+            TreeMap<Integer, List<Integer>> byRetention = inTransaction(this::measurementsByRetention);
+            for (Map.Entry<Integer, List<Integer>> entry : byRetention.entrySet()) {
+                long cutoff = now - TimeUnit.DAYS.toSeconds(entry.getKey());
+                List<Integer> measurements = entry.getValue();
+
+                boolean done = false;
+                while (!done && batches < maxBatchesPerRun && !overloaded()) {
+                    int deleted = inTransaction(connection -> deleteDatapoints(connection, measurements, cutoff));
+                    batches++;
+                    deletedPoints += deleted;
+                    metrics.add("retention.deleted_points", deleted);
+                    done = deleted < batchSize;
+                }
+                // a chunk is deleted once its whole day is expired
+                while (done && batches < maxBatchesPerRun && !overloaded()) {
+                    int deleted = inTransaction(connection -> deleteChunks(connection, measurements, cutoff));
+                    batches++;
+                    deletedChunks += deleted;
+                    metrics.add("retention.deleted_chunks", deleted);
+                    if (deleted < batchSize) {
+                        break;
+                    }
+                }
+                if (!done || batches >= maxBatchesPerRun) {
+                    remaining++;
+                }
+            }
+        } catch (Exception e) {
+            metrics.increment("retention.failures");
+            System.err.println("Error applying the retention policies: " + e.getMessage());
+        }
+        behind.set(remaining);
+        metrics.add("retention.batches", batches);
+        metrics.record("retention.run_duration_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (deletedPoints > 0 || deletedChunks > 0) {
+            System.out.println("Retention deleted " + deletedPoints + " datapoints and " + deletedChunks + " cold chunks in "
+                    + batches + " batches" + (remaining > 0 ? ", more to delete at the next run" : ""));
+        }
+    }
+
+    // true when the database is busy enough that the job should wait for the next run
+    private boolean overloaded() throws SQLException {
+        int active = inTransaction(connection -> {
+            try (Statement statement = connection.createStatement();
+                    ResultSet rs = statement.executeQuery(
+                            "SELECT count(*) FROM pg_stat_activity " +
+                            "WHERE state = 'active' AND datname = current_database() AND pid <> pg_backend_pid()")) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        });
+        if (active > maxActiveQueries) {
+            metrics.increment("retention.throttled");
+            return true;
+        }
+        return false;
+    }
+
+    private TreeMap<Integer, List<Integer>> measurementsByRetention(Connection connection) throws SQLException {
+        TreeMap<Integer, List<Integer>> byRetention = new TreeMap<>();
+        try (Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery(
+                        "SELECT m.id, m.name, " +
+                        "CASE WHEN sp.id IS NOT NULL THEN 'SolarPanel' " +
+                        "WHEN wt.id IS NOT NULL THEN 'WindTurbine' " +
+                        "WHEN ev.id IS NOT NULL THEN 'EVCharger' END " +
+                        "FROM measurement m " +
+                        "LEFT JOIN solar_panel sp ON sp.id = m.sensor " +
+                        "LEFT JOIN wind_turbine wt ON wt.id = m.sensor " +
+                        "LEFT JOIN ev_charger ev ON ev.id = m.sensor")) {
+            while (rs.next()) {
+                Integer days = policies.get("name:" + rs.getString(2));
+                if (days == null && rs.getString(3) != null) {
+                    days = policies.get("kind:" + rs.getString(3));
+                }
+                if (days == null) {
+                    days = policies.get(DEFAULT_SELECTOR);
+                }
+                if (days != null) {
+                    byRetention.computeIfAbsent(days, k -> new ArrayList<>()).add(rs.getInt(1));
+                }
+            }
+        }
+        return byRetention;
+    }
+
+    // The rows are picked through the (measurement, timestamp) index and deleted by primary key,
+    // on the partitioned table this only touches the expired partitions
+    private int deleteDatapoints(Connection connection, List<Integer> measurements, long cutoff) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM datapoint WHERE (id, timestamp) IN (" +
+                "SELECT id, timestamp FROM datapoint WHERE measurement = ANY(?) AND timestamp < ? LIMIT ?)")) {
+            Array ids = connection.createArrayOf("integer", measurements.toArray());
+            statement.setArray(1, ids);
+            statement.setLong(2, cutoff);
+            statement.setInt(3, batchSize);
+            return statement.executeUpdate();
+        }
+    }
+
+    private int deleteChunks(Connection connection, List<Integer> measurements, long cutoff) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "DELETE FROM datapoint_chunk WHERE (measurement, day) IN (" +
+                "SELECT measurement, day FROM datapoint_chunk WHERE measurement = ANY(?) AND day + ? <= ? LIMIT ?)")) {
+            Array ids = connection.createArrayOf("integer", measurements.toArray());
+            statement.setArray(1, ids);
+            statement.setLong(2, ColdTier.DAY);
+            statement.setLong(3, cutoff);
+            statement.setInt(4, batchSize);
+            return statement.executeUpdate();
+        }
+    }
+
+    private <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            T result = work.run(db.unwrap(Connection.class));
+            db.getTransaction().commit();
+            return result;
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+}
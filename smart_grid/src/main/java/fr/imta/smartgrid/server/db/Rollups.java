@@ -0,0 +1,203 @@
+package fr.imta.smartgrid.server.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import fr.imta.smartgrid.server.cold.ColdTier;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Per measurement aggregates of the datapoints over 1 minute, 1 hour and 1 day buckets.
+// Each table `datapoint_rollup_<resolution>` holds, per (measurement, bucket start):
+// min, max, sum and count (avg = sum / count), and the first / last value with their timestamp.
+// The tables are updated by PostgresDataPointStore.insert in the same statement as the datapoints, so a
+// datapoint is counted once, and can be rebuilt from the stored datapoints with rebuild().
+public final class Rollups {
+    private Rollups() {
+    }
+
+    public enum Resolution {
+        RAW("raw", 60), // the sensors send a reading per minute
+        MINUTE("1m", 60),
+        HOUR("1h", 3600),
+        DAY("1d", 86400);
+
+        private final String label;
+        private final long seconds;
+
+        Resolution(String label, long seconds) {
+            this.label = label;
+            this.seconds = seconds;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public long seconds() {
+            return seconds;
+        }
+
+        public String table() {
+            return "datapoint_rollup_" + label;
+        }
+
+        // null if the label is unknown
+        public static Resolution fromLabel(String label) {
+            for (Resolution resolution : values()) {
+                if (resolution.label.equals(label)) {
+                    return resolution;
+                }
+            }
+            return null;
+        }
+
+        // Finest resolution returning at most `maxPoints` points over [from, to]
+        public static Resolution auto(long from, long to, int maxPoints) {
+            long span = Math.max(0, to - from);
+            for (Resolution resolution : values()) {
+                if (span / resolution.seconds <= maxPoints) {
+                    return resolution;
+                }
+            }
+            return DAY;
+        }
+    }
+
+    // Rollup resolutions, finest first
+    public static final List<Resolution> ROLLUPS = List.of(Resolution.MINUTE, Resolution.HOUR, Resolution.DAY);
+
+    // Upsert merging the aggregates of a `source` (measurement, bucket, min, max, sum, count,
+    // first_ts, first, last_ts, last) relation into the rollup table
+    public static String upsert(Resolution resolution, String source) {
+        String table = resolution.table();
+        return "INSERT INTO " + table + " AS r (measurement, bucket, min, max, sum, count, first_ts, first, last_ts, last) " +
+                source + " " +
+                "ON CONFLICT (measurement, bucket) DO UPDATE SET " +
+                "min = LEAST(r.min, EXCLUDED.min), " +
+                "max = GREATEST(r.max, EXCLUDED.max), " +
+                "sum = r.sum + EXCLUDED.sum, " +
+                "count = r.count + EXCLUDED.count, " +
+                "first = CASE WHEN EXCLUDED.first_ts < r.first_ts THEN EXCLUDED.first ELSE r.first END, " +
+                "first_ts = LEAST(r.first_ts, EXCLUDED.first_ts), " +
+                "last = CASE WHEN EXCLUDED.last_ts >= r.last_ts THEN EXCLUDED.last ELSE r.last END, " +
+                "last_ts = GREATEST(r.last_ts, EXCLUDED.last_ts)";
+    }
+
+    // Aggregates of the raw datapoints in `relation` (measurement, timestamp, value) per bucket
+    public static String aggregate(Resolution resolution, String relation) {
+        long seconds = resolution.seconds();
+        return "SELECT measurement, timestamp - timestamp % " + seconds + ", " +
+                "min(value), max(value), sum(value), count(*), " +
+                "min(timestamp), (array_agg(value ORDER BY timestamp))[1], " +
+                "max(timestamp), (array_agg(value ORDER BY timestamp DESC))[1] " +
+                "FROM " + relation + " GROUP BY 1, 2";
+    }
+
+    public static String createTable(Resolution resolution) {
+        return "CREATE TABLE IF NOT EXISTS " + resolution.table() + " (" +
+                "measurement integer NOT NULL REFERENCES measurement(id), " +
+                "bucket bigint NOT NULL, " +
+                "min double precision, " +
+                "max double precision, " +
+                "sum double precision, " +
+                "count bigint NOT NULL, " +
+                "first_ts bigint NOT NULL, " +
+                "first double precision, " +
+                "last_ts bigint NOT NULL, " +
+                "last double precision, " +
+                "PRIMARY KEY (measurement, bucket))";
+    }
+
+    // Recompute the rollups from the datapoints and the cold tier, one measurement per transaction.
+    // Run it with the ingest stopped, concurrent inserts could be counted twice.
+    // The retention job deletes old datapoints but keeps their rollups: only the buckets starting at
+    // or after the oldest datapoint left are recomputed, a bucket holding it is recomputed only if
+    // its rollup does not count older (deleted) datapoints. The older rollups are kept as they are.
+    public static void rebuild(EntityManagerFactory emf) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            @SuppressWarnings("unchecked")
+            List<Number> measurements = db.createNativeQuery("SELECT id FROM measurement ORDER BY id").getResultList();
+            for (Number measurement : measurements) {
+                db.getTransaction().begin();
+                Connection connection = db.unwrap(Connection.class);
+                Long oldest = oldest(connection, measurement.intValue());
+                if (oldest == null) {
+                    db.getTransaction().commit();
+                    continue;
+                }
+                try (Statement statement = connection.createStatement()) {
+                    // the points moved to the cold tier are decoded into a temporary table
+                    statement.execute("CREATE TEMPORARY TABLE cold_points (measurement integer, timestamp bigint, value double precision) ON COMMIT DROP");
+                    try (PreparedStatement insert = connection.prepareStatement("INSERT INTO cold_points VALUES (?, ?, ?)")) {
+                        ColdTier.scan(db, measurement.intValue(), 0, Long.MAX_VALUE, (timestamp, value) -> {
+                            try {
+                                insert.setInt(1, measurement.intValue());
+                                insert.setLong(2, timestamp);
+                                insert.setDouble(3, value);
+                                insert.addBatch();
+                            } catch (SQLException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        });
+                        insert.executeBatch();
+                    }
+
+                    for (Resolution resolution : ROLLUPS) {
+                        long start = firstRebuiltBucket(connection, resolution, measurement.intValue(), oldest);
+                        String rows = "(SELECT measurement, timestamp, value FROM datapoint " +
+                                "WHERE measurement = " + measurement.intValue() + " AND timestamp >= " + start + " " +
+                                "UNION ALL SELECT measurement, timestamp, value FROM cold_points WHERE timestamp >= " + start + ") d";
+                        statement.execute("DELETE FROM " + resolution.table() + " WHERE measurement = " + measurement.intValue() +
+                                " AND bucket >= " + start);
+                        statement.execute(upsert(resolution, aggregate(resolution, rows)));
+                    }
+                }
+                db.getTransaction().commit();
+                System.out.println("Rebuilt the rollups of measurement " + measurement.intValue() + " from timestamp " + oldest);
+            }
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    // Timestamp of the oldest datapoint of the measurement still stored (table or cold tier), null if none
+    private static Long oldest(Connection connection, int measurement) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT LEAST((SELECT min(timestamp) FROM datapoint WHERE measurement = ?), " +
+                "(SELECT min(first_ts) FROM datapoint_chunk WHERE measurement = ?))")) {
+            statement.setInt(1, measurement);
+            statement.setInt(2, measurement);
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                long oldest = rs.getLong(1);
+                return rs.wasNull() ? null : oldest;
+            }
+        }
+    }
+
+    // The bucket holding `oldest`, or the next one if its rollup counts datapoints older than `oldest`
+    private static long firstRebuiltBucket(Connection connection, Resolution resolution, int measurement, long oldest)
+            throws SQLException {
+        long bucket = oldest - Math.floorMod(oldest, resolution.seconds());
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT first_ts FROM " + resolution.table() + " WHERE measurement = ? AND bucket = ?")) {
+            statement.setInt(1, measurement);
+            statement.setLong(2, bucket);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next() && rs.getLong(1) < oldest) {
+                    return bucket + resolution.seconds();
+                }
+            }
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,107 @@
+package fr.imta.smartgrid.server.handlers;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+// Writes a JSON response with chunked transfer encoding, `chunkBytes` at a time, so a large
+// response is never held in memory. The caller appends the JSON text in order.
+// When the write queue of the connection is full, the calling (DB executor) thread waits for it to
+// drain: a slow client slows the database read down instead of buffering the whole response.
+// The whole response must be written within `timeoutMillis`, past it the connection is reset: the
+// thread holds a DB permit and a connection while it waits, a slow client cannot keep them longer.
+// On an event loop thread (DB_EXECUTION_MODE=event_loop) waiting would block the writes, it does not wait.
+public class ChunkedJsonWriter {
+    // thrown to stop producing the response when the client went away
+    public static class ClosedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ClosedException(String message) {
+            super(message);
+        }
+    }
+
+    private final HttpServerResponse response;
+    private final int chunkBytes;
+    private final long deadline; // System.nanoTime()
+    private Buffer buffer;
+    private volatile boolean closed;
+
+    public ChunkedJsonWriter(HttpServerResponse response, int chunkBytes, long timeoutMillis) {
+        this.response = response;
+        this.chunkBytes = chunkBytes;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.buffer = Buffer.buffer(chunkBytes);
+        response.setChunked(true).putHeader("content-type", "application/json");
+        response.closeHandler(v -> closed = true);
+    }
+
+    public ChunkedJsonWriter write(String json) {
+        buffer.appendString(json);
+        if (buffer.length() >= chunkBytes) {
+            flush();
+        }
+        return this;
+    }
+
+    public void end() {
+        response.end(buffer);
+    }
+
+    // true once some of the response was sent, an error can then no longer change the status
+    public boolean started() {
+        return response.headWritten();
+    }
+
+    private void flush() {
+        if (closed) {
+            throw new ClosedException("Connection closed by the client");
+        }
+        checkDeadline();
+        response.write(buffer);
+        buffer = Buffer.buffer(chunkBytes);
+        if (response.writeQueueFull() && !Context.isOnEventLoopThread()) {
+            awaitDrain();
+        }
+    }
+
+    private void awaitDrain() {
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        response.drainHandler(v -> drained.complete(null));
+        response.closeHandler(v -> {
+            closed = true;
+            drained.complete(null);
+        });
+        try {
+            // the queue may have drained before the handler was set
+            if (response.writeQueueFull() && !closed) {
+                drained.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.reset();
+            throw new ClosedException("Interrupted while streaming the response");
+        } catch (TimeoutException e) {
+            checkDeadline();
+        } catch (ExecutionException e) {
+            throw new ClosedException(e.getMessage());
+        } finally {
+            response.drainHandler(null);
+        }
+        if (closed) {
+            throw new ClosedException("Connection closed by the client");
+        }
+    }
+
+    private void checkDeadline() {
+        if (System.nanoTime() - deadline >= 0) {
+            response.reset();
+            throw new ClosedException("Response not written within its deadline");
+        }
+    }
+}
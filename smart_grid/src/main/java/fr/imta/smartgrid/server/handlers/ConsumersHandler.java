@@ -3,24 +3,22 @@ package fr.imta.smartgrid.server.handlers;
 import fr.imta.smartgrid.model.Consumer;
 import fr.imta.smartgrid.model.EVCharger;
 import fr.imta.smartgrid.model.Grid;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.EntityTransaction;
 
 import java.util.List;
 
-public class ConsumersHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public ConsumersHandler(EntityManager db) {
-        this.db = db;
+public class ConsumersHandler extends DatabaseHandler {
+    public ConsumersHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         String method = context.request().method().name();
         String path = context.request().path();
         String id = context.pathParam("id");
@@ -29,16 +27,16 @@ public class ConsumersHandler implements Handler<RoutingContext> {
             // Route based on HTTP method and path
             if ("GET".equals(method)) {
                 if (id != null) {
-                    getConsumer(context, Long.parseLong(id));
+                    getConsumer(context, db, Long.parseLong(id));
                 } else {
-                    getAllConsumers(context);
+                    getAllConsumers(context, db);
                 }
             } else if ("POST".equals(method)) {
-                createConsumer(context);
+                createConsumer(context, db);
             } else if ("PUT".equals(method) && id != null) {
-                updateConsumer(context, Long.parseLong(id));
+                updateConsumer(context, db, Long.parseLong(id));
             } else if ("DELETE".equals(method) && id != null) {
-                deleteConsumer(context, Long.parseLong(id));
+                deleteConsumer(context, db, Long.parseLong(id));
             } else {
                 context.response()
                         .setStatusCode(400)
@@ -55,7 +53,7 @@ public class ConsumersHandler implements Handler<RoutingContext> {
         }
     }
     
-    private void getAllConsumers(RoutingContext context) {
+    private void getAllConsumers(RoutingContext context, EntityManager db) {
         // Query for all consumers
         List<Consumer> consumers = db.createQuery("SELECT c FROM Consumer c", Consumer.class).getResultList();
         
@@ -105,7 +103,7 @@ public class ConsumersHandler implements Handler<RoutingContext> {
                 .end(response.encode());
     }
     
-    private void getConsumer(RoutingContext context, long id) {
+    private void getConsumer(RoutingContext context, EntityManager db, long id) {
         // Find consumer by ID
         Consumer consumer = db.find(Consumer.class, id);
         
@@ -156,7 +154,7 @@ public class ConsumersHandler implements Handler<RoutingContext> {
                 .end(consumerJson.encode());
     }
     
-    private void createConsumer(RoutingContext context) {
+    private void createConsumer(RoutingContext context, EntityManager db) {
         try {
             JsonObject body = context.getBodyAsJson();
             
@@ -208,7 +206,7 @@ public class ConsumersHandler implements Handler<RoutingContext> {
         }
     }
     
-    private void updateConsumer(RoutingContext context, long id) {
+    private void updateConsumer(RoutingContext context, EntityManager db, long id) {
         try {
             Consumer consumer = db.find(Consumer.class, id);
             
@@ -275,7 +273,7 @@ public class ConsumersHandler implements Handler<RoutingContext> {
         }
     }
     
-    private void deleteConsumer(RoutingContext context, long id) {
+    private void deleteConsumer(RoutingContext context, EntityManager db, long id) {
         try {
             Consumer consumer = db.find(Consumer.class, id);
             
@@ -0,0 +1,40 @@
+package fr.imta.smartgrid.server.handlers;
+
+import fr.imta.smartgrid.server.db.ReadReplica;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Base class of the route handlers using the database.
+// EntityManagers are not thread safe and keep every loaded entity in their persistence context,
+// so each request gets its own short-lived EntityManager, closed once the handler returns.
+// With a read replica, the GET requests get an EntityManager of the replica when it is usable.
+public abstract class DatabaseHandler implements Handler<RoutingContext> {
+    private final EntityManagerFactory emf;
+    private ReadReplica replica; // null when GET requests also use the primary
+
+    protected DatabaseHandler(EntityManagerFactory emf) {
+        this.emf = emf;
+    }
+
+    // Serve the GET requests from the replica, `replica` may be null
+    public DatabaseHandler withReadReplica(ReadReplica replica) {
+        this.replica = replica;
+        return this;
+    }
+
+    @Override
+    public final void handle(RoutingContext context) {
+        EntityManagerFactory factory = replica != null && context.request().method() == HttpMethod.GET ? replica.forReads() : emf;
+        EntityManager db = factory.createEntityManager();
+        try {
+            handle(context, db);
+        } finally {
+            db.close();
+        }
+    }
+
+    protected abstract void handle(RoutingContext context, EntityManager db);
+}
@@ -0,0 +1,64 @@
+package fr.imta.smartgrid.server.handlers;
+
+import fr.imta.smartgrid.server.store.DataPointStore;
+
+// Min/max downsampling of a scan for the charts: [from, to] is split in points / 2 buckets of the
+// same duration and each bucket is reduced to its lowest and highest points, in timestamp order,
+// so the peaks a chart would show are kept. The points must come in timestamp order; only the
+// min and max of the current bucket are held, whatever the number of points scanned.
+class Downsampler implements DataPointStore.PointConsumer {
+    private final long from;
+    private final long width;
+    private final DataPointStore.PointConsumer output;
+
+    private boolean open;
+    private long bucket;
+    private long minTimestamp;
+    private double minValue;
+    private long maxTimestamp;
+    private double maxValue;
+
+    Downsampler(long from, long to, int points, DataPointStore.PointConsumer output) {
+        this.from = from;
+        // at most points / 2 buckets: (to - from) / width is below that count
+        this.width = (to - from) / Math.max(1, points / 2) + 1;
+        this.output = output;
+    }
+
+    @Override
+    public void accept(long timestamp, double value) {
+        long index = (timestamp - from) / width;
+        if (!open || index != bucket) {
+            finish();
+            open = true;
+            bucket = index;
+            minTimestamp = timestamp;
+            minValue = value;
+            maxTimestamp = timestamp;
+            maxValue = value;
+        } else if (value < minValue) {
+            minTimestamp = timestamp;
+            minValue = value;
+        } else if (value > maxValue) {
+            maxTimestamp = timestamp;
+            maxValue = value;
+        }
+    }
+
+    // Write the last bucket, to call once the scan is over
+    void finish() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (minTimestamp == maxTimestamp) {
+            output.accept(minTimestamp, minValue);
+        } else if (minTimestamp < maxTimestamp) {
+            output.accept(minTimestamp, minValue);
+            output.accept(maxTimestamp, maxValue);
+        } else {
+            output.accept(maxTimestamp, maxValue);
+            output.accept(minTimestamp, minValue);
+        }
+    }
+}
@@ -1,20 +1,24 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.Grid;
-import io.vertx.core.Handler;
+import fr.imta.smartgrid.server.store.DataPointStore;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
-public class GridProductionHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
+import java.util.List;
 
-    public GridProductionHandler(EntityManager db) {
-        this.db = db;
+public class GridProductionHandler extends DatabaseHandler {
+    private final DataPointStore store;
+
+    public GridProductionHandler(EntityManagerFactory emf, DataPointStore store) {
+        super(emf);
+        this.store = store;
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get grid ID from path parameter
             String idParam = context.pathParam("id");
@@ -31,17 +35,21 @@ public class GridProductionHandler implements Handler<RoutingContext> {
             
             // Calculate total production by querying the database
             // Get the latest energy produced values from all producers in this grid
-            Double totalProduction = (Double) db.createNativeQuery(
-                    "SELECT COALESCE(SUM(d.value), 0) " +
-                    "FROM datapoint d " +
-                    "JOIN measurement m ON d.measurement = m.id " +
+            // The latest values come from the store (measurement_latest with Postgres), the cost does not depend on the history
+            @SuppressWarnings("unchecked")
+            List<Number> measurements = db.createNativeQuery(
+                    "SELECT m.id " +
+                    "FROM measurement m " +
                     "JOIN sensor s ON m.sensor = s.id " +
                     "JOIN producer p ON p.id = s.id " +
                     "WHERE s.grid = ?1 " +
-                    "AND m.name = 'total_energy_produced' " +
-                    "AND d.timestamp = (SELECT MAX(d2.timestamp) FROM datapoint d2 WHERE d2.measurement = d.measurement)")
+                    "AND m.name = 'total_energy_produced'")
                     .setParameter(1, gridId)
-                    .getSingleResult();
+                    .getResultList();
+            double totalProduction = 0;
+            for (DataPointStore.Point latest : store.latest(measurements.stream().map(Number::intValue).toList()).values()) {
+                totalProduction += latest.value();
+            }
             
             // Return response
             context.response()
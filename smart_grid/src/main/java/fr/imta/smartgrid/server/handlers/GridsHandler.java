@@ -1,22 +1,20 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.Grid;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.List;
 
-public class GridsHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public GridsHandler(EntityManager db) {
-        this.db = db;
+public class GridsHandler extends DatabaseHandler {
+    public GridsHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get all grid IDs
             List<Integer> gridIds = db.createQuery("SELECT g.id FROM Grid g", Integer.class)
@@ -0,0 +1,111 @@
+package fr.imta.smartgrid.server.handlers;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.imta.smartgrid.model.Measurement;
+import fr.imta.smartgrid.server.store.DataPointStore;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// One aggregate (fn) per time bucket of a measurement, computed by the store next to the data.
+// The buckets are returned as two parallel arrays, `timestamps` (bucket starts) and `values`.
+public class MeasurementAggregateHandler extends DatabaseHandler {
+    private static final Pattern BUCKET = Pattern.compile("([1-9][0-9]{0,5})([smhd])");
+    private static final List<String> FUNCTIONS = List.of("avg", "min", "max", "sum", "count", "last");
+
+    private final DataPointStore store;
+
+    public MeasurementAggregateHandler(EntityManagerFactory emf, DataPointStore store) {
+        super(emf);
+        this.store = store;
+    }
+
+    @Override
+    protected void handle(RoutingContext context, EntityManager db) {
+        try {
+            int measurementId = Integer.parseInt(context.pathParam("id"));
+
+            String fn = context.request().getParam("fn", "avg");
+            if (!FUNCTIONS.contains(fn)) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "Invalid fn, expected avg, min, max, sum, count or last").encode());
+                return;
+            }
+            String bucketParam = context.request().getParam("bucket", "1h");
+            long bucketSeconds = bucketSeconds(bucketParam);
+            if (bucketSeconds == 0) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "Invalid bucket, expected a duration like 30s, 5m, 1h or 1d").encode());
+                return;
+            }
+
+            String fromParam = context.request().getParam("from");
+            String toParam = context.request().getParam("to");
+            long fromTimestamp = fromParam != null ? Long.parseLong(fromParam) : 0;
+            long toTimestamp = toParam != null ? Long.parseLong(toParam) : Integer.MAX_VALUE;
+
+            Measurement measurement = db.find(Measurement.class, measurementId);
+            if (measurement == null) {
+                context.response()
+                        .setStatusCode(404)
+                        .end(new JsonObject().put("error", "Measurement not found").encode());
+                return;
+            }
+
+            JsonArray timestamps = new JsonArray();
+            JsonArray values = new JsonArray();
+            for (DataPointStore.Bucket bucket : store.aggregate(measurementId, fromTimestamp, toTimestamp, bucketSeconds)) {
+                timestamps.add(bucket.start());
+                switch (fn) {
+                    case "min" -> values.add(bucket.min());
+                    case "max" -> values.add(bucket.max());
+                    case "sum" -> values.add(bucket.sum());
+                    case "count" -> values.add(bucket.count());
+                    case "last" -> values.add(bucket.last());
+                    default -> values.add(bucket.average());
+                }
+            }
+
+            context.response()
+                    .putHeader("content-type", "application/json")
+                    .end(new JsonObject()
+                            .put("sensor_id", measurement.getSensor().getId())
+                            .put("measurement_id", measurement.getId())
+                            .put("fn", fn)
+                            .put("bucket", bucketParam)
+                            .put("timestamps", timestamps)
+                            .put("values", values)
+                            .encode());
+        } catch (NumberFormatException e) {
+            context.response()
+                    .setStatusCode(400)
+                    .end(new JsonObject().put("error", "Invalid parameter").encode());
+        } catch (Exception e) {
+            context.response()
+                    .setStatusCode(500)
+                    .end(new JsonObject().put("error", "Internal server error: " + e.getMessage()).encode());
+        }
+    }
+
+    // Length in seconds of a bucket like 5m, 0 if it is not one
+    private static long bucketSeconds(String bucket) {
+        Matcher matcher = BUCKET.matcher(bucket);
+        if (!matcher.matches()) {
+            return 0;
+        }
+        long count = Long.parseLong(matcher.group(1));
+        return switch (matcher.group(2)) {
+            case "s" -> count;
+            case "m" -> count * 60;
+            case "h" -> count * 3600;
+            default -> count * 86400;
+        };
+    }
+}
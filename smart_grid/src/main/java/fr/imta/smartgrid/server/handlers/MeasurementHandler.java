@@ -1,20 +1,18 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.Measurement;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
-public class MeasurementHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public MeasurementHandler(EntityManager db) {
-        this.db = db;
+public class MeasurementHandler extends DatabaseHandler {
+    public MeasurementHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get measurement ID from path parameter
             String idParam = context.pathParam("id");
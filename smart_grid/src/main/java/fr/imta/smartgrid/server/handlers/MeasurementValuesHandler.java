@@ -1,25 +1,44 @@
 package fr.imta.smartgrid.server.handlers;
 
-import fr.imta.smartgrid.model.DataPoint;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
 import fr.imta.smartgrid.model.Measurement;
-import io.vertx.core.Handler;
+import fr.imta.smartgrid.server.db.Rollups;
+import fr.imta.smartgrid.server.store.DataPointStore;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
-import jakarta.persistence.TypedQuery;
+import jakarta.persistence.EntityManagerFactory;
 
-import java.util.List;
+public class MeasurementValuesHandler extends DatabaseHandler {
+    private static final int CHUNK_BYTES = 32 * 1024;
 
-public class MeasurementValuesHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
+    private final DataPointStore store;
+    private final int autoMaxPoints; // resolution=auto picks the finest resolution under this many points
+    private final int maxPageSize; // largest limit accepted
+    private final long streamTimeoutMillis; // time allowed to write a raw values response
 
-    public MeasurementValuesHandler(EntityManager db) {
-        this.db = db;
+    public MeasurementValuesHandler(EntityManagerFactory emf, DataPointStore store, int autoMaxPoints, int maxPageSize,
+            long streamTimeoutMillis) {
+        super(emf);
+        this.store = store;
+        this.autoMaxPoints = autoMaxPoints;
+        this.maxPageSize = maxPageSize;
+        this.streamTimeoutMillis = streamTimeoutMillis;
+    }
+
+    // True if the request streams raw datapoints (not rollups, not downsampled): the response may be
+    // large and written as fast as the client reads it, the route runs it on the streaming executor
+    public static boolean streamsRawValues(RoutingContext context) {
+        String resolution = context.request().getParam("resolution", Rollups.Resolution.RAW.label());
+        return Rollups.Resolution.RAW.label().equals(resolution) && context.request().getParam("points") == null;
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get measurement ID from path parameter
             String idParam = context.pathParam("id");
@@ -40,36 +59,117 @@ public class MeasurementValuesHandler implements Handler<RoutingContext> {
             
             long fromTimestamp = fromParam != null ? Long.parseLong(fromParam) : 0;
             long toTimestamp = toParam != null ? Long.parseLong(toParam) : Integer.MAX_VALUE;
-            
-            // Query datapoints in the specified time range
-            TypedQuery<DataPoint> query = db.createQuery(
-                    "SELECT dp FROM DataPoint dp WHERE dp.measurement = :measurement " +
-                    "AND dp.timestamp >= :fromTime AND dp.timestamp <= :toTime " +
-                    "ORDER BY dp.timestamp", DataPoint.class)
-                    .setParameter("measurement", measurement)
-                    .setParameter("fromTime", fromTimestamp)
-                    .setParameter("toTime", toTimestamp);
-            
-            List<DataPoint> datapoints = query.getResultList();
-            
-            // Create JSON response
-            JsonObject response = new JsonObject()
-                    .put("sensor_id", measurement.getSensor().getId())
-                    .put("measurement_id", measurement.getId());
-            
-            JsonArray values = new JsonArray();
-            for (DataPoint datapoint : datapoints) {
-                values.add(new JsonObject()
-                        .put("timestamp", datapoint.getTimestamp())
-                        .put("value", datapoint.getValue()));
+
+            // raw datapoints by default, or the 1m / 1h / 1d rollups
+            String resolutionParam = context.request().getParam("resolution", Rollups.Resolution.RAW.label());
+            Rollups.Resolution resolution = "auto".equals(resolutionParam)
+                    ? Rollups.Resolution.auto(fromTimestamp, toTimestamp, autoMaxPoints)
+                    : Rollups.Resolution.fromLabel(resolutionParam);
+            if (resolution == null) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "Invalid resolution, expected raw, 1m, 1h, 1d or auto").encode());
+                return;
+            }
+
+            // optional keyset pagination of the raw datapoints: at most `limit` points per page, the
+            // `cursor` of the next page holds the last timestamp sent
+            String limitParam = context.request().getParam("limit");
+            String cursorParam = context.request().getParam("cursor");
+            if ((limitParam != null || cursorParam != null) && resolution != Rollups.Resolution.RAW) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "limit and cursor are only available with the raw resolution").encode());
+                return;
+            }
+            int limit = limitParam != null ? Integer.parseInt(limitParam) : Integer.MAX_VALUE;
+            if (limitParam != null && (limit <= 0 || limit > maxPageSize)) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "Invalid limit, expected a number between 1 and " + maxPageSize).encode());
+                return;
+            }
+            if (cursorParam != null) {
+                Long after = decodeCursor(measurement.getId(), cursorParam);
+                if (after == null) {
+                    context.response()
+                            .setStatusCode(400)
+                            .end(new JsonObject().put("error", "Invalid cursor").encode());
+                    return;
+                }
+                fromTimestamp = Math.max(fromTimestamp, after + 1);
+            }
+
+            // optional downsampling of the raw datapoints to at most `points` values for a chart
+            String pointsParam = context.request().getParam("points");
+            int points = pointsParam != null ? Integer.parseInt(pointsParam) : 0;
+            if (pointsParam != null && (resolution != Rollups.Resolution.RAW || limitParam != null || cursorParam != null)) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "points is only available with the raw resolution, without limit and cursor").encode());
+                return;
+            }
+            if (pointsParam != null && points < 2) {
+                context.response()
+                        .setStatusCode(400)
+                        .end(new JsonObject().put("error", "Invalid points, expected at least 2").encode());
+                return;
+            }
+
+            if (resolution != Rollups.Resolution.RAW) {
+                context.response()
+                        .putHeader("content-type", "application/json")
+                        .end(rollupValues(measurement, resolution, fromTimestamp, toTimestamp).encode());
+                return;
             }
             
-            response.put("values", values);
-            
-            // Return response
-            context.response()
-                    .putHeader("content-type", "application/json")
-                    .end(response.encode());
+            // Datapoints in the specified time range, in timestamp order, written as they are read
+            ChunkedJsonWriter writer = new ChunkedJsonWriter(context.response(), CHUNK_BYTES, streamTimeoutMillis);
+            writer.write("{\"sensor_id\":" + measurement.getSensor().getId()
+                    + ",\"measurement_id\":" + measurement.getId() + ",\"values\":[");
+            int[] count = { 0 };
+            long[] last = { 0 };
+            boolean[] more = { false };
+            try {
+                DataPointStore.PointConsumer output = (timestamp, value) -> {
+                    if (count[0] == limit) {
+                        more[0] = true;
+                        return;
+                    }
+                    writer.write((count[0] == 0 ? "{\"timestamp\":" : ",{\"timestamp\":") + timestamp + ",\"value\":" + value + "}");
+                    count[0]++;
+                    last[0] = timestamp;
+                };
+                if (points > 0) {
+                    downsample(measurement.getId(), fromTimestamp, toTimestamp, points, output);
+                } else {
+                    // one point past the page tells whether there is a next page
+                    int scanLimit = limitParam != null && limit < Integer.MAX_VALUE ? limit + 1 : Integer.MAX_VALUE;
+                    store.scan(measurement.getId(), fromTimestamp, toTimestamp, scanLimit, output);
+                }
+            } catch (ChunkedJsonWriter.ClosedException e) {
+                System.err.println("Stopped streaming the values of measurement " + measurement.getId() + ": " + e.getMessage());
+                return;
+            } catch (Exception e) {
+                if (!writer.started()) {
+                    throw e;
+                }
+                // the 200 status was already sent, resetting the connection tells the client the body is incomplete
+                System.err.println("Error streaming the values of measurement " + measurement.getId() + ": " + e.getMessage());
+                context.response().reset();
+                return;
+            }
+            writer.write("]");
+            if (limitParam != null) {
+                String next = null;
+                if (more[0]) {
+                    next = context.request().path() + "?limit=" + limit + "&cursor=" + encodeCursor(measurement.getId(), last[0])
+                            + (fromParam != null ? "&from=" + fromParam : "")
+                            + (toParam != null ? "&to=" + toParam : "");
+                }
+                writer.write(",\"next\":" + (next != null ? "\"" + next + "\"" : "null"));
+            }
+            writer.write("}").end();
         } catch (NumberFormatException e) {
             context.response()
                     .setStatusCode(400)
@@ -80,4 +180,62 @@ public class MeasurementValuesHandler implements Handler<RoutingContext> {
                     .end(new JsonObject().put("error", "Internal server error: " + e.getMessage()).encode());
         }
     }
+
+    // The buckets of the Downsampler span the points actually in [from, to]: `to` defaults to 2^31 - 1
+    // and would otherwise leave most buckets empty
+    private void downsample(int measurement, long from, long to, int points, DataPointStore.PointConsumer output) {
+        Long[] first = { null };
+        store.scan(measurement, from, to, 1, (timestamp, value) -> first[0] = timestamp);
+        if (first[0] == null) {
+            return;
+        }
+        DataPointStore.Point latest = store.latest(List.of(measurement)).get(measurement);
+        long end = latest != null ? Math.max(first[0], Math.min(to, latest.timestamp())) : to;
+
+        Downsampler downsampler = new Downsampler(first[0], end, points, output);
+        store.scan(measurement, first[0], to, downsampler);
+        downsampler.finish();
+    }
+
+    // One entry per bucket overlapping [from, to]: its start as timestamp, the average as value,
+    // and the other aggregates of the bucket
+    private JsonObject rollupValues(Measurement measurement, Rollups.Resolution resolution, long from, long to) {
+        JsonArray values = new JsonArray();
+        for (DataPointStore.Bucket bucket : store.aggregate(measurement.getId(), from, to, resolution.seconds())) {
+            values.add(new JsonObject()
+                    .put("timestamp", bucket.start())
+                    .put("value", bucket.average())
+                    .put("min", bucket.min())
+                    .put("max", bucket.max())
+                    .put("count", bucket.count())
+                    .put("first", bucket.first())
+                    .put("last", bucket.last()));
+        }
+
+        return new JsonObject()
+                .put("sensor_id", measurement.getSensor().getId())
+                .put("measurement_id", measurement.getId())
+                .put("resolution", resolution.label())
+                .put("values", values);
+    }
+
+    // The cursor is opaque to the clients: base64url of "<measurement>:<last timestamp sent>".
+    // (measurement, timestamp) is unique, the timestamp alone orders the points of a measurement.
+    private static String encodeCursor(int measurement, long timestamp) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((measurement + ":" + timestamp).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The timestamp of a cursor of that measurement, null if it is not one
+    private static Long decodeCursor(int measurement, String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 2 || Integer.parseInt(parts[0]) != measurement) {
+                return null;
+            }
+            return Long.parseLong(parts[1]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package fr.imta.smartgrid.server.handlers;
+
+import fr.imta.smartgrid.server.metrics.Metrics;
+import io.vertx.core.Handler;
+import io.vertx.ext.web.RoutingContext;
+
+public class MetricsHandler implements Handler<RoutingContext> {
+    private final Metrics metrics;
+
+    public MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        context.response()
+                .putHeader("content-type", "application/json")
+                .end(metrics.toJson().encode());
+    }
+}
@@ -1,20 +1,18 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.Person;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
-public class PersonDeleteHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public PersonDeleteHandler(EntityManager db) {
-        this.db = db;
+public class PersonDeleteHandler extends DatabaseHandler {
+    public PersonDeleteHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get person ID from path parameter
             String idParam = context.pathParam("id");
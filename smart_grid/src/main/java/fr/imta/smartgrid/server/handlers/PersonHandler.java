@@ -1,21 +1,19 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.Person;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
-public class PersonHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public PersonHandler(EntityManager db) {
-        this.db = db;
+public class PersonHandler extends DatabaseHandler {
+    public PersonHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get person ID from path parameter
             String idParam = context.pathParam("id");
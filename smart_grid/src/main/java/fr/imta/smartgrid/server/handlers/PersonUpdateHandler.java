@@ -3,24 +3,22 @@ package fr.imta.smartgrid.server.handlers;
 import fr.imta.smartgrid.model.Grid;
 import fr.imta.smartgrid.model.Person;
 import fr.imta.smartgrid.model.Sensor;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class PersonUpdateHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public PersonUpdateHandler(EntityManager db) {
-        this.db = db;
+public class PersonUpdateHandler extends DatabaseHandler {
+    public PersonUpdateHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get person ID from path parameter
             String idParam = context.pathParam("id");
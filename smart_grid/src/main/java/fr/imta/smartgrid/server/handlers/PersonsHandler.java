@@ -1,21 +1,19 @@
 package fr.imta.smartgrid.server.handlers;
 
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.List;
 
-public class PersonsHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public PersonsHandler(EntityManager db) {
-        this.db = db;
+public class PersonsHandler extends DatabaseHandler {
+    public PersonsHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get all person IDs
             List<Integer> personIds = db.createQuery("SELECT p.id FROM Person p", Integer.class)
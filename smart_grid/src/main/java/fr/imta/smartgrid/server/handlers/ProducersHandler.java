@@ -3,23 +3,21 @@ package fr.imta.smartgrid.server.handlers;
 import fr.imta.smartgrid.model.Producer;
 import fr.imta.smartgrid.model.SolarPanel;
 import fr.imta.smartgrid.model.WindTurbine;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.List;
 
-public class ProducersHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public ProducersHandler(EntityManager db) {
-        this.db = db;
+public class ProducersHandler extends DatabaseHandler {
+    public ProducersHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Query for all producers
             List<Producer> producers = db.createQuery("SELECT p FROM Producer p", Producer.class).getResultList();
@@ -1,24 +1,22 @@
 package fr.imta.smartgrid.server.handlers;
 
 import fr.imta.smartgrid.model.*;
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class SensorUpdateHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public SensorUpdateHandler(EntityManager db) {
-        this.db = db;
+public class SensorUpdateHandler extends DatabaseHandler {
+    public SensorUpdateHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get sensor ID from path parameter
             String idParam = context.pathParam("id");
@@ -1,21 +1,19 @@
 package fr.imta.smartgrid.server.handlers;
 
-import io.vertx.core.Handler;
 import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
 import java.util.List;
 
-public class SensorsKindHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
-
-    public SensorsKindHandler(EntityManager db) {
-        this.db = db;
+public class SensorsKindHandler extends DatabaseHandler {
+    public SensorsKindHandler(EntityManagerFactory emf) {
+        super(emf);
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
         try {
             // Get sensor kind from path parameter
             String kind = context.pathParam("kind");
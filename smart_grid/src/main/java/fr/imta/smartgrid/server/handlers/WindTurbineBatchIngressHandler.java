@@ -0,0 +1,133 @@
+package fr.imta.smartgrid.server.handlers;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.server.ingest.LastValueCache;
+import fr.imta.smartgrid.server.ingest.ReadingDeduplicator;
+import fr.imta.smartgrid.server.ingest.WriteAheadLog;
+import fr.imta.smartgrid.server.store.DataPointStore;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Bulk version of POST /ingress/windturbine for gateways that buffer readings.
+// The body is either a JSON array of readings or NDJSON (one reading per line), each reading
+// has the same format as the single route. Valid readings are saved in one transaction and the
+// response gives the status of every record, in the order they were sent.
+public class WindTurbineBatchIngressHandler extends DatabaseHandler {
+    private final DataPointStore store;
+    private final LastValueCache lastValues;
+    private final ReadingDeduplicator dedup;
+    private final WriteAheadLog wal; // null when the log is disabled
+    private final int maxRecords;
+
+    public WindTurbineBatchIngressHandler(EntityManagerFactory emf, DataPointStore store, LastValueCache lastValues,
+            ReadingDeduplicator dedup, WriteAheadLog wal, int maxRecords) {
+        super(emf);
+        this.store = store;
+        this.lastValues = lastValues;
+        this.dedup = dedup;
+        this.wal = wal;
+        this.maxRecords = maxRecords;
+    }
+
+    @Override
+    protected void handle(RoutingContext context, EntityManager db) {
+        List<DataPoint> datapoints = new ArrayList<>();
+        try {
+            String body = context.body().asString();
+            if (body == null || body.isBlank()) {
+                context.response().setStatusCode(400).end(new JsonObject().put("error", "Empty payload").encode());
+                return;
+            }
+
+            List<Object> records = parseRecords(body.trim());
+            if (records.size() > maxRecords) {
+                context.response()
+                        .setStatusCode(413)
+                        .end(new JsonObject().put("error", "Too many records, maximum is " + maxRecords).encode());
+                return;
+            }
+
+            // Validate every record and build its datapoints
+            JsonArray results = new JsonArray();
+            int accepted = 0;
+            int duplicates = 0;
+            for (int i = 0; i < records.size(); i++) {
+                JsonObject result = new JsonObject().put("index", i);
+                Object record = records.get(i);
+                try {
+                    if (!(record instanceof JsonObject)) {
+                        throw new WindTurbineIngressHandler.ReadingException(400, "Record is not a valid JSON object");
+                    }
+                    List<DataPoint> recordDatapoints = WindTurbineIngressHandler.createDataPoints(db, lastValues, dedup, (JsonObject) record);
+                    if (recordDatapoints == null) {
+                        // already received, acknowledged like a success so the gateway does not resend it
+                        result.put("status", "duplicate");
+                        duplicates++;
+                    } else {
+                        datapoints.addAll(recordDatapoints);
+                        result.put("status", "success");
+                    }
+                    accepted++;
+                } catch (WindTurbineIngressHandler.ReadingException e) {
+                    result.put("status", "error")
+                            .put("code", e.getStatusCode())
+                            .put("error", e.getMessage());
+                }
+                results.add(result);
+            }
+
+            // Save all valid records in one transaction (or one write-ahead log entry)
+            if (!datapoints.isEmpty()) {
+                WindTurbineIngressHandler.save(store, wal, datapoints);
+            }
+
+            context.response()
+                    .putHeader("content-type", "application/json")
+                    .end(new JsonObject()
+                            .put("status", accepted == records.size() ? "success" : "partial")
+                            .put("accepted", accepted)
+                            .put("rejected", records.size() - accepted)
+                            .put("duplicates", duplicates)
+                            .put("results", results)
+                            .encode());
+        } catch (DecodeException e) {
+            context.response().setStatusCode(400).end(new JsonObject().put("error", "Invalid JSON payload: " + e.getMessage()).encode());
+        } catch (Exception e) {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            WindTurbineIngressHandler.revert(lastValues, dedup, datapoints);
+            context.response().setStatusCode(500).end(new JsonObject().put("error", e.getMessage()).encode());
+        }
+    }
+
+    // A body starting with '[' is a JSON array, anything else is read as NDJSON.
+    // An NDJSON line that is not valid JSON is kept as a string so it gets its own error status.
+    private List<Object> parseRecords(String body) {
+        List<Object> records = new ArrayList<>();
+        if (body.startsWith("[")) {
+            new JsonArray(body).forEach(records::add);
+            return records;
+        }
+
+        for (String line : body.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                records.add(new JsonObject(line));
+            } catch (DecodeException e) {
+                records.add(line);
+            }
+        }
+        return records;
+    }
+}
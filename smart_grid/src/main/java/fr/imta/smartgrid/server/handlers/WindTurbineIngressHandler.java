@@ -3,22 +3,52 @@ package fr.imta.smartgrid.server.handlers;
 import fr.imta.smartgrid.model.DataPoint;
 import fr.imta.smartgrid.model.Measurement;
 import fr.imta.smartgrid.model.WindTurbine;
-import io.vertx.core.Handler;
+import fr.imta.smartgrid.server.ingest.LastValueCache;
+import fr.imta.smartgrid.server.ingest.ReadingDeduplicator;
+import fr.imta.smartgrid.server.ingest.WriteAheadLog;
+import fr.imta.smartgrid.server.store.DataPointStore;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
 
+import java.util.ArrayList;
 import java.util.List;
 
-public class WindTurbineIngressHandler implements Handler<RoutingContext> {
-    private final EntityManager db;
+public class WindTurbineIngressHandler extends DatabaseHandler {
+    private final DataPointStore store;
+    private final LastValueCache lastValues;
+    private final ReadingDeduplicator dedup;
+    private final WriteAheadLog wal; // null when the log is disabled
+
+    public WindTurbineIngressHandler(EntityManagerFactory emf, DataPointStore store, LastValueCache lastValues, ReadingDeduplicator dedup,
+            WriteAheadLog wal) {
+        super(emf);
+        this.store = store;
+        this.lastValues = lastValues;
+        this.dedup = dedup;
+        this.wal = wal;
+    }
+
+    // Error on a single reading, with the HTTP status the route answers
+    public static class ReadingException extends Exception {
+        private static final long serialVersionUID = 1L;
 
-    public WindTurbineIngressHandler(EntityManager db) {
-        this.db = db;
+        private final int statusCode;
+
+        public ReadingException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
     }
 
     @Override
-    public void handle(RoutingContext context) {
+    protected void handle(RoutingContext context, EntityManager db) {
+        List<DataPoint> datapoints = new ArrayList<>();
         try {
             // Parse request body
             JsonObject body = context.getBodyAsJson();
@@ -27,105 +57,144 @@ public class WindTurbineIngressHandler implements Handler<RoutingContext> {
                 return;
             }
 
-            // Extract data
-            int turbineId = body.getInteger("windturbine");
-            long timestamp = body.getLong("timestamp");
-            JsonObject data = body.getJsonObject("data");
-
-            if (data == null) {
-                context.response().setStatusCode(500).end(new JsonObject().put("error", "Missing data field").encode());
+            datapoints = createDataPoints(db, lastValues, dedup, body);
+            if (datapoints == null) {
+                // already received, the sensor resent it after a timeout: acknowledge without saving
+                context.response()
+                        .putHeader("content-type", "application/json")
+                        .end(new JsonObject().put("status", "duplicate").encode());
                 return;
             }
 
-            double speed = data.getDouble("speed");
-            double power = data.getDouble("power");
+            // Save the datapoints in one transaction, or acknowledge once they are in the write-ahead log
+            save(store, wal, datapoints);
 
-            // Find the wind turbine
-            WindTurbine windTurbine = db.find(WindTurbine.class, turbineId);
-            if (windTurbine == null) {
-                context.response().setStatusCode(404).end(new JsonObject().put("error", "Wind turbine not found").encode());
-                return;
-            }
+            // Return success response
+            context.response()
+                    .putHeader("content-type", "application/json")
+                    .end(new JsonObject().put("status", "success").encode());
 
-            // Find measurements for the wind turbine
-            Measurement speedMeasurement = null;
-            Measurement powerMeasurement = null;
-            Measurement energyMeasurement = null;
-
-            for (Measurement m : windTurbine.getMeasurements()) {
-                if ("speed".equals(m.getName())) {
-                    speedMeasurement = m;
-                } else if ("power".equals(m.getName())) {
-                    powerMeasurement = m;
-                } else if ("total_energy_produced".equals(m.getName())) {
-                    energyMeasurement = m;
-                }
+        } catch (ReadingException e) {
+            context.response().setStatusCode(e.getStatusCode()).end(new JsonObject().put("error", e.getMessage()).encode());
+        } catch (Exception e) {
+            // Rollback transaction if active
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
             }
+            revert(lastValues, dedup, datapoints);
+            context.response().setStatusCode(500).end(new JsonObject().put("error", e.getMessage()).encode());
+        }
+    }
 
-            // Get latest energy value
-            double prevEnergy = 0;
-            if (energyMeasurement != null) {
-                // Get the latest energy datapoint
-                List<DataPoint> latestPoints = db.createQuery(
-                        "SELECT dp FROM DataPoint dp WHERE dp.measurement = :measurement " +
-                                "ORDER BY dp.timestamp DESC", DataPoint.class)
-                        .setParameter("measurement", energyMeasurement)
-                        .setMaxResults(1)
-                        .getResultList();
-
-                if (!latestPoints.isEmpty()) {
-                    prevEnergy = latestPoints.get(0).getValue();
-                }
+    // Validate a reading and build its speed, power and energy datapoints.
+    // The new energy total is stored in the cache right away so that several readings of the
+    // same turbine can be processed before a commit, callers must revert() if the save fails.
+    // Returns null if the reading was already received.
+    public static List<DataPoint> createDataPoints(EntityManager db, LastValueCache lastValues, ReadingDeduplicator dedup,
+            JsonObject body) throws ReadingException {
+        // Extract data
+        Integer turbineId;
+        Long timestamp;
+        Double speed;
+        Double power;
+        try {
+            turbineId = body.getInteger("windturbine");
+            timestamp = body.getLong("timestamp");
+            JsonObject data = body.getJsonObject("data");
+            if (data == null) {
+                throw new ReadingException(500, "Missing data field");
             }
+            speed = data.getDouble("speed");
+            power = data.getDouble("power");
+        } catch (ClassCastException e) {
+            throw new ReadingException(500, "Invalid field type: " + e.getMessage());
+        }
 
-            // Calculate new energy (assuming 60 seconds since last datapoint)
-            // Energy (Wh) = Power (W) * Time (h), where time is 60 seconds = 1/60 hour
-            double newEnergy = prevEnergy + (power * (1.0 / 60.0));
+        if (turbineId == null || timestamp == null || speed == null || power == null) {
+            throw new ReadingException(500, "Missing windturbine, timestamp, data.speed or data.power field");
+        }
 
-            // Start transaction
-            db.getTransaction().begin();
+        // Find the wind turbine
+        WindTurbine windTurbine = db.find(WindTurbine.class, turbineId);
+        if (windTurbine == null) {
+            throw new ReadingException(404, "Wind turbine not found");
+        }
 
-            // Save the speed datapoint
-            if (speedMeasurement != null) {
-                DataPoint speedDataPoint = new DataPoint();
-                speedDataPoint.setMeasurement(speedMeasurement);
-                speedDataPoint.setTimestamp(timestamp);
-                speedDataPoint.setValue(speed);
-                db.persist(speedDataPoint);
+        // Find measurements for the wind turbine
+        Measurement speedMeasurement = null;
+        Measurement powerMeasurement = null;
+        Measurement energyMeasurement = null;
+
+        for (Measurement m : windTurbine.getMeasurements()) {
+            if ("speed".equals(m.getName())) {
+                speedMeasurement = m;
+            } else if ("power".equals(m.getName())) {
+                powerMeasurement = m;
+            } else if ("total_energy_produced".equals(m.getName())) {
+                energyMeasurement = m;
             }
+        }
 
-            // Save the power datapoint
-            if (powerMeasurement != null) {
-                DataPoint powerDataPoint = new DataPoint();
-                powerDataPoint.setMeasurement(powerMeasurement);
-                powerDataPoint.setTimestamp(timestamp);
-                powerDataPoint.setValue(power);
-                db.persist(powerDataPoint);
-            }
+        // A resent reading must neither be stored again nor counted twice in the energy total
+        Measurement key = powerMeasurement != null ? powerMeasurement : speedMeasurement;
+        if (key != null && !dedup.accept(key, timestamp)) {
+            return null;
+        }
 
-            // Save the energy datapoint
-            if (energyMeasurement != null) {
-                DataPoint energyDataPoint = new DataPoint();
-                energyDataPoint.setMeasurement(energyMeasurement);
-                energyDataPoint.setTimestamp(timestamp);
-                energyDataPoint.setValue(newEnergy);
-                db.persist(energyDataPoint);
-            }
+        List<DataPoint> datapoints = new ArrayList<>(3);
 
-            // Commit transaction
-            db.getTransaction().commit();
+        // Save the speed datapoint
+        if (speedMeasurement != null) {
+            datapoints.add(createDataPoint(speedMeasurement, timestamp, speed));
+        }
 
-            // Return success response
-            context.response()
-                    .putHeader("content-type", "application/json")
-                    .end(new JsonObject().put("status", "success").encode());
+        // Save the power datapoint
+        if (powerMeasurement != null) {
+            datapoints.add(createDataPoint(powerMeasurement, timestamp, power));
+        }
 
-        } catch (Exception e) {
-            // Rollback transaction if active
-            if (db.getTransaction().isActive()) {
-                db.getTransaction().rollback();
+        // Save the energy datapoint
+        if (energyMeasurement != null) {
+            // Add the energy of the reading to the latest total
+            datapoints.add(energyDataPoint(lastValues, energyMeasurement, timestamp, power));
+        }
+
+        return datapoints;
+    }
+
+    // Append the datapoints to the store (one transaction with Postgres), or to the write-ahead log when there is one
+    public static void save(DataPointStore store, WriteAheadLog wal, List<DataPoint> datapoints) throws Exception {
+        if (wal != null) {
+            if (!wal.append(datapoints)) {
+                throw new IllegalStateException("Cannot write to the write-ahead log");
             }
-            context.response().setStatusCode(500).end(new JsonObject().put("error", e.getMessage()).encode());
+            return;
         }
+        store.append(datapoints);
+    }
+
+    // Calculate new energy (assuming 60 seconds since last datapoint)
+    // Energy (Wh) = Power (W) * Time (h), where time is 60 seconds = 1/60 hour
+    // The total is accumulated in the cache right away, the datapoint remembers its increment for revert()
+    public static DataPoint energyDataPoint(LastValueCache lastValues, Measurement energyMeasurement, long timestamp, double power) {
+        double increment = power * (1.0 / 60.0);
+        DataPoint datapoint = createDataPoint(energyMeasurement, timestamp, lastValues.accumulate(energyMeasurement, timestamp, increment));
+        datapoint.setIncrement(increment);
+        return datapoint;
+    }
+
+    // Take back the cached energy of datapoints that could not be saved, and let their redelivery through
+    public static void revert(LastValueCache lastValues, ReadingDeduplicator dedup, List<DataPoint> datapoints) {
+        lastValues.revert(datapoints);
+        dedup.forget(datapoints);
+    }
+
+    // A new datapoint, shared by the ingest paths
+    public static DataPoint createDataPoint(Measurement measurement, long timestamp, double value) {
+        DataPoint datapoint = new DataPoint();
+        datapoint.setMeasurement(measurement);
+        datapoint.setTimestamp(timestamp);
+        datapoint.setValue(value);
+        return datapoint;
     }
 }
@@ -0,0 +1,176 @@
+package fr.imta.smartgrid.server.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import fr.imta.smartgrid.server.store.DataPointStore;
+
+// Write-behind stage for sensor datapoints.
+// Producers submit groups of datapoints (one group per reading) into a bounded queue,
+// a background thread drains the queue and appends the datapoints to the store in one call
+// (one transaction with Postgres), as soon as `batchSize` datapoints are pending or the oldest pending
+// group waited `flushIntervalMillis`. A group is never split between two transactions.
+// With a WriteAheadLog the groups are appended to the log instead, and its drainer does the inserts.
+public class DataPointWriter {
+    // a full queue is logged at most this often, writer.dropped_points counts every drop
+    private static final long DROP_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final DataPointStore store;
+    private final Metrics metrics;
+    private final LastValueCache lastValues;
+    private final ReadingDeduplicator dedup;
+    private final WriteAheadLog wal; // null when the log is disabled
+    private final BlockingQueue<List<DataPoint>> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final AtomicLong lastDropLog = new AtomicLong(System.nanoTime() - DROP_LOG_INTERVAL_NANOS);
+    private final LongAdder unloggedDrops = new LongAdder();
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public DataPointWriter(DataPointStore store, Metrics metrics, LastValueCache lastValues, ReadingDeduplicator dedup,
+            WriteAheadLog wal, int queueCapacity, int batchSize, long flushIntervalMillis) {
+        this.store = store;
+        this.metrics = metrics;
+        this.lastValues = lastValues;
+        this.dedup = dedup;
+        this.wal = wal;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+
+        metrics.gauge("writer.queue_depth", queue::size);
+        metrics.gauge("writer.queue_capacity", () -> queueCapacity);
+    }
+
+    // Queue a group of datapoints, returns false (and counts the drop) if the queue is full.
+    // With the write-ahead log the group is durable on disk when this returns true.
+    public boolean submit(List<DataPoint> group) {
+        if (group.isEmpty()) {
+            return true;
+        }
+        boolean accepted = wal != null ? wal.append(group) : queue.offer(group);
+        if (!accepted) {
+            metrics.add("writer.dropped_points", group.size());
+            logDrop(group.size());
+            return false;
+        }
+        return true;
+    }
+
+    // An overloaded server drops many groups per second, one line per group would flood the log
+    private void logDrop(int points) {
+        unloggedDrops.add(points);
+        long now = System.nanoTime();
+        long last = lastDropLog.get();
+        if (now - last >= DROP_LOG_INTERVAL_NANOS && lastDropLog.compareAndSet(last, now)) {
+            System.err.println((wal != null ? "Cannot write to the write-ahead log" : "Datapoint queue is full") + ", dropped "
+                    + unloggedDrops.sumThenReset() + " datapoints since the last message");
+        }
+    }
+
+    public void start() {
+        if (wal != null) {
+            wal.start();
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "datapoint-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop the writer after flushing everything that is still queued
+    public void stop() {
+        if (wal != null) {
+            wal.stop();
+            return;
+        }
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        List<DataPoint> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                // wait for the first group, then fill the batch until it is full or the oldest group is too old
+                List<DataPoint> group = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (group == null) {
+                    continue;
+                }
+                batch.addAll(group);
+
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    group = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (group == null) {
+                        break;
+                    }
+                    batch.addAll(group);
+                }
+            } catch (InterruptedException e) {
+                // stop() was called, flush what we already have and drain the queue below
+            }
+
+            flush(batch);
+        }
+
+        // drain whatever was queued before the shutdown
+        List<List<DataPoint>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (List<DataPoint> group : remaining) {
+            batch.addAll(group);
+            if (batch.size() >= batchSize) {
+                flush(batch);
+            }
+        }
+        flush(batch);
+    }
+
+    private void flush(List<DataPoint> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            int inserted = store.append(batch);
+
+            metrics.add("writer.skipped_duplicates", batch.size() - inserted);
+            metrics.increment("writer.flushes");
+            metrics.add("writer.flushed_points", batch.size());
+            metrics.record("writer.batch_size", batch.size());
+            metrics.record("writer.flush_latency_us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        } catch (Exception e) {
+            metrics.add("writer.failed_points", batch.size());
+            // take back the energy of these readings from the cached totals (the groups queued after
+            // them are not in the store either, reloading the totals would lose them too)
+            // and accept the readings again when the sensors resend them
+            lastValues.revert(batch);
+            dedup.forget(batch);
+            System.err.println("Error flushing " + batch.size() + " datapoints: " + e.getMessage());
+        } finally {
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package fr.imta.smartgrid.server.ingest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.imta.smartgrid.server.metrics.Metrics;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+// Bounded admission for one ingest path (one sensor kind).
+// At most `limit` readings / requests are in flight (waiting for or doing database work), once the
+// limit is reached new work is refused right away on the event loop instead of piling up:
+// HTTP requests are answered with 503 and a Retry-After header, UDP datagrams are dropped.
+public class IngestGate {
+    private final int limit;
+    private final int retryAfterSeconds;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public IngestGate(String kind, int limit, int retryAfterSeconds, Metrics metrics) {
+        this.limit = limit;
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        String prefix = "ingest." + kind + ".";
+        metrics.gauge(prefix + "in_flight", inFlight::get);
+        metrics.gauge(prefix + "limit", () -> limit);
+        metrics.gauge(prefix + "rejected", rejected::sum);
+        metrics.gauge(prefix + "dropped", dropped::sum);
+    }
+
+    // Take a slot, returns false if the gate is full. A successful call must be followed by release()
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    // Count a UDP datagram refused because the gate was full
+    public void drop() {
+        dropped.increment();
+    }
+
+    // Route handler admitting the request through the gate, the slot is released when the response ends
+    public Handler<RoutingContext> wrap(Handler<RoutingContext> handler) {
+        return context -> {
+            if (!tryAcquire()) {
+                rejected.increment();
+                context.response()
+                        .setStatusCode(503)
+                        .putHeader("Retry-After", String.valueOf(retryAfterSeconds))
+                        .putHeader("content-type", "application/json")
+                        .end(new JsonObject().put("error", "Server overloaded, retry later").encode());
+                return;
+            }
+            context.addEndHandler(res -> release());
+            handler.handle(context);
+        };
+    }
+}
@@ -0,0 +1,95 @@
+package fr.imta.smartgrid.server.ingest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import fr.imta.smartgrid.server.store.DataPointStore;
+import jakarta.persistence.EntityManager;
+
+// Last known datapoint of each measurement, used to accumulate the total energy
+// without querying the datapoint table on every reading.
+// The cache is warmed from the store at startup and updated by the ingest paths,
+// a miss (new measurement) is reconciled with a lookup in the store.
+// The cached total runs ahead of the store by the groups still waiting in the writer queue, so an
+// entry is never reloaded from the store once it is loaded: the increments of datapoints that
+// could not be saved are taken back with revert() instead.
+public class LastValueCache {
+    public record Entry(long timestamp, double value) {
+    }
+
+    // cached when a measurement has no datapoint yet, so we do not query it again
+    private static final Entry EMPTY = new Entry(Long.MIN_VALUE, 0);
+
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final DataPointStore store;
+    private final Metrics metrics;
+
+    public LastValueCache(DataPointStore store, Metrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+        metrics.gauge("last_value_cache.size", entries::size);
+    }
+
+    // Load the latest value of every energy total from the store
+    public void warm(EntityManager db) {
+        List<Integer> measurements = db.createQuery(
+                "SELECT m.id FROM Measurement m WHERE m.name IN ('total_energy_produced', 'total_energy_consumed')", Integer.class)
+                .getResultList();
+
+        Map<Integer, DataPointStore.Point> latest = store.latest(measurements);
+        latest.forEach((measurement, point) -> put(measurement, point.timestamp(), point.value()));
+        System.out.println("Last value cache warmed with " + latest.size() + " measurements");
+    }
+
+    // Latest value of the measurement, or null if it has no datapoint
+    public Entry get(Measurement measurement) {
+        Entry entry = entries.get(measurement.getId());
+        if (entry != null) {
+            metrics.increment("last_value_cache.hits");
+            return entry == EMPTY ? null : entry;
+        }
+
+        metrics.increment("last_value_cache.misses");
+        entry = reconcile(measurement);
+        return entry == EMPTY ? null : entry;
+    }
+
+    // Atomically add `increment` to the total of the measurement (0 without datapoint) and return
+    // the new total. Readings of the same sensor processed at the same time each see the total
+    // updated by the other, a get then put could lose one of the increments.
+    public double accumulate(Measurement measurement, long timestamp, double increment) {
+        // load a missing entry from the store first, no query runs inside compute
+        get(measurement);
+        return entries.compute(measurement.getId(), (id, old) -> new Entry(
+                Math.max(timestamp, old.timestamp()), (old == EMPTY ? 0 : old.value()) + increment)).value();
+    }
+
+    // Take back the increments of datapoints that were not saved (failed flush or request, full queue)
+    public void revert(List<DataPoint> datapoints) {
+        for (DataPoint datapoint : datapoints) {
+            double increment = datapoint.getIncrement();
+            if (increment != 0) {
+                entries.computeIfPresent(datapoint.getMeasurement().getId(),
+                        (id, old) -> old == EMPTY ? old : new Entry(old.timestamp(), old.value() - increment));
+            }
+        }
+    }
+
+    private void put(int measurementId, long timestamp, double value) {
+        Entry entry = new Entry(timestamp, value);
+        // keep the most recent value if readings arrive out of order
+        entries.merge(measurementId, entry, (old, fresh) -> fresh.timestamp() >= old.timestamp() ? fresh : old);
+    }
+
+    private Entry reconcile(Measurement measurement) {
+        DataPointStore.Point latest = store.latest(List.of(measurement.getId())).get(measurement.getId());
+        Entry entry = latest == null ? EMPTY : new Entry(latest.timestamp(), latest.value());
+        // a concurrent put wins over the stored value
+        Entry current = entries.putIfAbsent(measurement.getId(), entry);
+        return current != null ? current : entry;
+    }
+}
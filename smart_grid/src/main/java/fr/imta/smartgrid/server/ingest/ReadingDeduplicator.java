@@ -0,0 +1,189 @@
+package fr.imta.smartgrid.server.ingest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import fr.imta.smartgrid.server.store.DataPointStore;
+
+// Rejects sensor readings that were already received, keyed on (measurement, timestamp).
+// Sensors resend a reading when they time out, without this the datapoint is stored twice and
+// its power is added to the energy total twice.
+//  - every measurement keeps a ring of its last `ringSize` timestamps, a hit is a duplicate
+//  - older keys are remembered by a Bloom filter; only when it answers "maybe" the datapoint
+//    store is queried, a new reading (the common case) costs no database work
+// The Bloom filter has two generations of `bloomBits` bits, the older one is dropped when the
+// current one is full, so the memory stays bounded whatever the uptime. Keys older than that fall
+// back to the store, which skips the points it already holds.
+public class ReadingDeduplicator {
+    private static final int HASHES = 4;
+
+    private final boolean enabled;
+    private final int ringSize;
+    private final int bloomBits;
+    // insertions after which the current generation is rotated, 16 bits per key keeps the
+    // false positive rate around 0.2% with 4 hashes
+    private final int bloomCapacity;
+    private final DataPointStore store;
+    private final Metrics metrics;
+    private final Map<Integer, Ring> rings = new ConcurrentHashMap<>();
+
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+    private int inserted; // guarded by this
+
+    public ReadingDeduplicator(DataPointStore store, boolean enabled, int ringSize, int bloomBits, Metrics metrics) {
+        this.store = store;
+        this.enabled = enabled;
+        this.ringSize = ringSize;
+        // round up to a multiple of 64 to fill the words
+        this.bloomBits = Math.max(64, (bloomBits + 63) & ~63);
+        this.bloomCapacity = Math.max(1, this.bloomBits / 16);
+        this.metrics = metrics;
+        this.current = new AtomicLongArray(this.bloomBits / 64);
+        this.previous = new AtomicLongArray(this.bloomBits / 64);
+
+        metrics.gauge("dedup.tracked_measurements", rings::size);
+    }
+
+    // Returns false if the reading of `measurement` at `timestamp` was already received, otherwise
+    // remembers it and returns true. The caller must forget() it if the reading is not saved.
+    public boolean accept(Measurement measurement, long timestamp) {
+        if (!enabled) {
+            return true;
+        }
+
+        long key = key(measurement.getId(), timestamp);
+        Ring ring = rings.computeIfAbsent(measurement.getId(), id -> new Ring(ringSize));
+        // the ring lock makes check-then-insert atomic for concurrent deliveries of a measurement
+        synchronized (ring) {
+            if (ring.contains(timestamp)) {
+                metrics.increment("dedup.suppressed_recent");
+                return false;
+            }
+
+            if (mightContain(key)) {
+                metrics.increment("dedup.db_checks");
+                if (store.contains(measurement.getId(), timestamp)) {
+                    metrics.increment("dedup.suppressed_stored");
+                    ring.add(timestamp);
+                    return false;
+                }
+                metrics.increment("dedup.bloom_false_positives");
+            }
+
+            ring.add(timestamp);
+            addToBloom(key);
+            return true;
+        }
+    }
+
+    // Forget a reading that could not be saved so that its redelivery is accepted.
+    // The Bloom filter cannot remove keys, its "maybe" is resolved by the database check.
+    public void forget(int measurementId, long timestamp) {
+        Ring ring = rings.get(measurementId);
+        if (ring != null) {
+            synchronized (ring) {
+                ring.remove(timestamp);
+            }
+        }
+    }
+
+    public void forget(Iterable<DataPoint> datapoints) {
+        if (!enabled) {
+            return;
+        }
+        for (DataPoint datapoint : datapoints) {
+            forget(datapoint.getMeasurement().getId(), datapoint.getTimestamp());
+        }
+    }
+
+    private boolean mightContain(long key) {
+        return contains(current, key) || contains(previous, key);
+    }
+
+    private boolean contains(AtomicLongArray bits, long key) {
+        long h1 = key;
+        long h2 = Long.rotateLeft(key, 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToBloom(long key) {
+        AtomicLongArray bits = current;
+        long h1 = key;
+        long h2 = Long.rotateLeft(key, 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (int) Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            long mask = 1L << bit;
+            long word;
+            while (((word = bits.get(bit >>> 6)) & mask) == 0 && !bits.compareAndSet(bit >>> 6, word, word | mask)) {
+                // retry, another bit of the word changed
+            }
+        }
+
+        synchronized (this) {
+            if (++inserted >= bloomCapacity) {
+                previous = current;
+                current = new AtomicLongArray(bloomBits / 64);
+                inserted = 0;
+                metrics.increment("dedup.bloom_rotations");
+            }
+        }
+    }
+
+    // Mix the measurement and timestamp into a well distributed 64 bits hash (murmur3 finalizer)
+    private static long key(int measurementId, long timestamp) {
+        long h = timestamp * 0x9E3779B97F4A7C15L + measurementId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Last timestamps of a measurement, oldest overwritten first
+    private static class Ring {
+        private final long[] timestamps;
+        private int size;
+        private int next;
+
+        Ring(int capacity) {
+            this.timestamps = new long[Math.max(1, capacity)];
+        }
+
+        boolean contains(long timestamp) {
+            for (int i = 0; i < size; i++) {
+                if (timestamps[i] == timestamp) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long timestamp) {
+            timestamps[next] = timestamp;
+            next = (next + 1) % timestamps.length;
+            size = Math.max(size, next == 0 ? timestamps.length : next);
+        }
+
+        // Blank the entry, no sensor sends Long.MIN_VALUE as timestamp
+        void remove(long timestamp) {
+            for (int i = 0; i < size; i++) {
+                if (timestamps[i] == timestamp) {
+                    timestamps[i] = Long.MIN_VALUE;
+                    return;
+                }
+            }
+        }
+    }
+}
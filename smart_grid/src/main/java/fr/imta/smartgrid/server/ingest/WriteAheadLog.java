@@ -0,0 +1,422 @@
+package fr.imta.smartgrid.server.ingest;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import fr.imta.smartgrid.server.store.DataPointStore;
+
+// Local append-only log of the ingested datapoints, so a reading can be acknowledged as soon as
+// it is on disk instead of after a Postgres commit.
+//  - the log is a series of memory-mapped segment files `wal-<sequence>.log` of `segmentBytes`
+//    bytes, a new segment is started when the current one is full
+//  - append() writes a group of datapoints as one entry and forces it to disk before returning.
+//    The log is forced in order up to the end of the written part (group commit): an entry is never
+//    acknowledged while an earlier one is not on disk, a crash could otherwise lose it with the
+//    acknowledged ones after it (replay stops at the first bad entry)
+//  - a background drainer appends the entries to the DataPointStore in batches of `batchSize`,
+//    and records how far it got in the `checkpoint` file; fully applied segments are deleted
+//  - at startup replay() applies whatever the previous run left in the log
+// If the database is down the drainer keeps retrying the same batch, the log grows meanwhile.
+// A batch rejected for good (data or constraint error) is applied again entry by entry, and the
+// entries still rejected are appended to the `dead-letter.log` file of the directory instead of
+// blocking the entries after them.
+//
+// Entry layout: count (int) | CRC32 of the points (int) | count * (measurement int, timestamp long, value double).
+// The segment files are zero-filled, a count of 0 marks the end of the written part. An entry with a
+// bad CRC (torn write during a crash) also ends the segment.
+public class WriteAheadLog {
+    private static final int ENTRY_HEADER = 8;
+    private static final int POINT_SIZE = 4 + 8 + 8;
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DEAD_LETTER = "dead-letter.log";
+
+    // position of the appender, published to the drainer
+    private record Position(long segment, int offset) {
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final int batchSize;
+    private final DataPointStore store;
+    private final Metrics metrics;
+
+    // appender state, guarded by this
+    private long segment;
+    private MappedByteBuffer buffer;
+    private volatile Position head;
+
+    // end of the part of the log forced to disk, guarded by flushLock (taken before this)
+    private final Object flushLock = new Object();
+    private Position flushed;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public WriteAheadLog(Path directory, int segmentBytes, boolean fsync, int batchSize, DataPointStore store, Metrics metrics)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.batchSize = batchSize;
+        this.store = store;
+        this.metrics = metrics;
+
+        Files.createDirectories(directory);
+        metrics.gauge("wal.segments", () -> segments().size());
+    }
+
+    // Apply the entries left by the previous run, then open a fresh segment for the appends.
+    // Called once at startup before anything is appended.
+    public void replay() throws Exception {
+        List<Long> segments = segments();
+        long[] checkpoint = readCheckpoint();
+        long checkpointSegment = checkpoint[0];
+        int checkpointOffset = (int) checkpoint[1];
+        int replayed = 0;
+        for (long seq : segments) {
+            if (seq < checkpointSegment) {
+                Files.deleteIfExists(file(seq));
+                continue;
+            }
+            int offset = seq == checkpointSegment ? checkpointOffset : 0;
+            while (offset >= 0) {
+                List<DataPoint> batch = new ArrayList<>(batchSize);
+                offset = drainBatch(seq, offset, segmentBytes, batch);
+                replayed += batch.size();
+            }
+            Files.deleteIfExists(file(seq));
+        }
+        if (replayed > 0) {
+            System.out.println("Write-ahead log replayed " + replayed + " datapoints");
+        }
+
+        synchronized (this) {
+            long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+            openSegment(Math.max(last, checkpointSegment) + 1);
+            writeCheckpoint(segment, 0);
+        }
+    }
+
+    // Write a group of datapoints as a single entry, returns once it is durable (with fsync).
+    // Returns false if the entry could not be written.
+    public boolean append(List<DataPoint> group) {
+        int size = ENTRY_HEADER + group.size() * POINT_SIZE;
+        if (group.isEmpty() || size > segmentBytes) {
+            return group.isEmpty();
+        }
+
+        CRC32 crc = new CRC32();
+        Position end;
+        synchronized (this) {
+            try {
+                // keep room for the empty header that ends the segment
+                if (head.offset() + size + ENTRY_HEADER > segmentBytes) {
+                    buffer.force();
+                    openSegment(segment + 1);
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot open write-ahead log segment: " + e.getMessage());
+                return false;
+            }
+
+            MappedByteBuffer target = buffer;
+            int offset = head.offset();
+            int position = offset + ENTRY_HEADER;
+            for (DataPoint datapoint : group) {
+                target.putInt(position, datapoint.getMeasurement().getId());
+                target.putLong(position + 4, datapoint.getTimestamp());
+                target.putDouble(position + 12, datapoint.getValue());
+                position += POINT_SIZE;
+            }
+            crc.update(target.slice(offset + ENTRY_HEADER, size - ENTRY_HEADER));
+            target.putInt(offset + 4, (int) crc.getValue());
+            // the count goes last, a reader never sees a partially written entry
+            target.putInt(offset, group.size());
+
+            head = new Position(segment, offset + size);
+            end = head;
+        }
+
+        // fsync outside of the append lock, one force covers the entries appended concurrently
+        if (fsync) {
+            flush(end);
+        }
+        metrics.add("wal.appended_points", group.size());
+        return true;
+    }
+
+    // Force the log to disk up to at least `end`, in order from the previous flush.
+    // A segment is forced completely before the next one is opened, so only the current one is forced here.
+    private void flush(Position end) {
+        synchronized (flushLock) {
+            if (flushed != null && (flushed.segment() > end.segment()
+                    || flushed.segment() == end.segment() && flushed.offset() >= end.offset())) {
+                // forced by a concurrent append
+                metrics.increment("wal.grouped_appends");
+                return;
+            }
+            Position current;
+            MappedByteBuffer target;
+            synchronized (this) {
+                current = head;
+                target = buffer;
+            }
+            int from = flushed != null && flushed.segment() == current.segment() ? flushed.offset() : 0;
+            long start = System.nanoTime();
+            target.force(from, current.offset() - from);
+            metrics.record("wal.fsync_us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            flushed = current;
+        }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "wal-drainer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop the drainer once it has applied everything appended so far
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        long seq;
+        int offset;
+        try {
+            long[] checkpoint = readCheckpoint();
+            seq = checkpoint[0];
+            offset = (int) checkpoint[1];
+        } catch (IOException e) {
+            System.err.println("Cannot read write-ahead log checkpoint: " + e.getMessage());
+            return;
+        }
+
+        while (true) {
+            Position current = head;
+            boolean sealed = seq < current.segment();
+            if (sealed || offset < current.offset()) {
+                try {
+                    int end = drainBatch(seq, offset, sealed ? segmentBytes : current.offset(), new ArrayList<>(batchSize));
+                    if (end >= 0) {
+                        offset = end;
+                        continue;
+                    }
+                    if (sealed) {
+                        // everything in the segment is applied
+                        writeCheckpoint(seq + 1, 0);
+                        Files.deleteIfExists(file(seq));
+                        seq++;
+                        offset = 0;
+                        continue;
+                    }
+                } catch (Exception e) {
+                    metrics.increment("wal.drain_failures");
+                    System.err.println("Error applying the write-ahead log, retrying: " + e.getMessage());
+                    if (!running) {
+                        // the log is replayed at the next start
+                        return;
+                    }
+                    pause(1000);
+                    continue;
+                }
+            } else if (!running) {
+                return;
+            }
+            pause(50);
+        }
+    }
+
+    // Apply one batch of entries starting at `offset`, returns the offset after them,
+    // or -1 when the end of the written part of the segment was reached
+    private int drainBatch(long seq, int offset, int limit, List<DataPoint> batch) throws Exception {
+        int end;
+        try (FileChannel channel = FileChannel.open(file(seq))) {
+            MappedByteBuffer segmentBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            end = read(segmentBuffer, offset, (int) Math.min(limit, channel.size()), batchSize, batch);
+            if (!batch.isEmpty()) {
+                try {
+                    insert(batch);
+                } catch (Exception e) {
+                    if (!isPermanent(e)) {
+                        throw e;
+                    }
+                    insertEntries(seq, segmentBuffer, offset, batch.size());
+                }
+            }
+        }
+        if (!batch.isEmpty() && end >= 0) {
+            writeCheckpoint(seq, end);
+        }
+        return end;
+    }
+
+    // Apply the entries holding the next `points` points from `offset` one at a time, the ones the
+    // database rejects for good go to the dead letter file. The checkpoint follows each entry, a
+    // retry after a transient error does not set an entry aside twice.
+    private void insertEntries(long seq, MappedByteBuffer segmentBuffer, int offset, int points) throws Exception {
+        while (points > 0) {
+            List<DataPoint> entry = new ArrayList<>();
+            read(segmentBuffer, offset, segmentBuffer.limit(), 1, entry);
+            int size = ENTRY_HEADER + entry.size() * POINT_SIZE;
+            try {
+                insert(entry);
+            } catch (Exception e) {
+                if (!isPermanent(e)) {
+                    throw e;
+                }
+                deadLetter(segmentBuffer, offset, size, entry.size(), e);
+            }
+            points -= entry.size();
+            offset += size;
+            writeCheckpoint(seq, offset);
+        }
+    }
+
+    // Data exceptions (SQLSTATE class 22) and integrity constraint violations (23) fail again on retry
+    private static boolean isPermanent(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLException sql && sql.getSQLState() != null
+                    && (sql.getSQLState().startsWith("22") || sql.getSQLState().startsWith("23"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The entry is appended as it is in the log (same layout), to be inspected or reapplied by hand
+    private void deadLetter(MappedByteBuffer segmentBuffer, int offset, int size, int points, Exception e) throws IOException {
+        byte[] entry = new byte[size];
+        segmentBuffer.get(offset, entry);
+        try (FileChannel file = FileChannel.open(directory.resolve(DEAD_LETTER),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            file.write(ByteBuffer.wrap(entry));
+            file.force(false);
+        }
+        metrics.increment("wal.dead_letter_entries");
+        metrics.add("wal.dead_letter_points", points);
+        System.err.println("Write-ahead log entry of " + points + " datapoints rejected by the database, moved to "
+                + DEAD_LETTER + ": " + e.getMessage());
+    }
+
+    // Read whole entries from `offset` into `batch` until it holds `maxPoints` points.
+    // Returns the offset after the last entry read, or -1 if the end of the written part was reached.
+    private static int read(MappedByteBuffer segmentBuffer, int offset, int limit, int maxPoints, List<DataPoint> batch) {
+        while (offset + ENTRY_HEADER <= limit) {
+            int count = segmentBuffer.getInt(offset);
+            int size = ENTRY_HEADER + count * POINT_SIZE;
+            if (count <= 0 || offset + size > limit) {
+                return -1;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(segmentBuffer.slice(offset + ENTRY_HEADER, size - ENTRY_HEADER));
+            if ((int) crc.getValue() != segmentBuffer.getInt(offset + 4)) {
+                System.err.println("Corrupted write-ahead log entry at offset " + offset + ", ignoring the rest of the segment");
+                return -1;
+            }
+            if (!batch.isEmpty() && batch.size() + count > maxPoints) {
+                return offset;
+            }
+
+            int position = offset + ENTRY_HEADER;
+            for (int i = 0; i < count; i++) {
+                Measurement measurement = new Measurement();
+                measurement.setId(segmentBuffer.getInt(position));
+                DataPoint datapoint = new DataPoint();
+                datapoint.setMeasurement(measurement);
+                datapoint.setTimestamp(segmentBuffer.getLong(position + 4));
+                datapoint.setValue(segmentBuffer.getDouble(position + 12));
+                batch.add(datapoint);
+                position += POINT_SIZE;
+            }
+            offset += size;
+        }
+        return offset;
+    }
+
+    private void insert(List<DataPoint> batch) throws Exception {
+        long start = System.nanoTime();
+        store.append(batch);
+        metrics.add("wal.drained_points", batch.size());
+        metrics.record("wal.drain_batch_size", batch.size());
+        metrics.record("wal.drain_latency_us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    // caller holds the lock
+    private void openSegment(long seq) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(file(seq).toFile(), "rw")) {
+            file.setLength(segmentBytes);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segment = seq;
+        head = new Position(seq, 0);
+    }
+
+    private List<Long> segments() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith("wal-") && name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name.substring(4, name.length() - 4)))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    private Path file(long seq) {
+        return directory.resolve(String.format("wal-%020d.log", seq));
+    }
+
+    // {segment, offset} of the first entry that is not applied yet
+    private long[] readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.exists(path)) {
+            return new long[] { 0, 0 };
+        }
+        String[] parts = Files.readString(path, StandardCharsets.US_ASCII).trim().split(" ");
+        return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+    }
+
+    // written to a temporary file then renamed, a crash leaves either the old or the new checkpoint
+    private void writeCheckpoint(long seq, int offset) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+        Files.writeString(tmp, seq + " " + offset, StandardCharsets.US_ASCII);
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // stop() was called, the loop drains what is left and returns
+        }
+    }
+}
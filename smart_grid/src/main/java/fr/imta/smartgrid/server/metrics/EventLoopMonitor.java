@@ -0,0 +1,59 @@
+package fr.imta.smartgrid.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+
+// Measures how long the event loops are blocked.
+// One probe per event loop schedules a timer every `intervalMillis`, the delay between the
+// expected and the actual firing time is the time the loop was busy with something else.
+// Delays over `stallThresholdMillis` are counted as stalls in event_loop.<n>.stalls.
+public class EventLoopMonitor {
+    private final Vertx vertx;
+    private final Metrics metrics;
+    private final long intervalMillis;
+    private final long stallThresholdMillis;
+
+    public EventLoopMonitor(Vertx vertx, Metrics metrics, long intervalMillis, long stallThresholdMillis) {
+        this.vertx = vertx;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+        this.stallThresholdMillis = stallThresholdMillis;
+    }
+
+    // Deploy one probe per event loop, verticle instances are assigned to the loops round robin
+    public void start(int eventLoops) {
+        AtomicInteger index = new AtomicInteger();
+        vertx.deployVerticle(() -> new Probe(index.getAndIncrement()), new DeploymentOptions().setInstances(eventLoops))
+                .onFailure(e -> System.err.println("Failed to start event loop monitor: " + e.getMessage()));
+    }
+
+    private class Probe extends AbstractVerticle {
+        private final String lagMetric;
+        private final String stallMetric;
+        private long expected;
+
+        Probe(int index) {
+            this.lagMetric = "event_loop." + index + ".lag_ms";
+            this.stallMetric = "event_loop." + index + ".stalls";
+        }
+
+        @Override
+        public void start() {
+            expected = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            vertx.setPeriodic(intervalMillis, id -> {
+                long now = System.nanoTime();
+                long lag = Math.max(0, TimeUnit.NANOSECONDS.toMillis(now - expected));
+                expected = now + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+
+                metrics.record(lagMetric, lag);
+                if (lag > stallThresholdMillis) {
+                    metrics.increment(stallMetric);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package fr.imta.smartgrid.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.vertx.core.json.JsonObject;
+
+// Process wide registry of counters, gauges and summaries, exposed as JSON on GET /metrics
+public class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Summary> summaries = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    // a gauge is read when the metrics are exported, e.g. the size of a queue
+    public void gauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // record one observation (latency, batch size...) in the summary with the given name
+    public void record(String name, long value) {
+        summaries.computeIfAbsent(name, k -> new Summary()).record(value);
+    }
+
+    public JsonObject toJson() {
+        Map<String, Object> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+        summaries.forEach((name, summary) -> values.put(name, summary.toJson()));
+        return new JsonObject(values);
+    }
+
+    private static class Summary {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, Long.MIN_VALUE);
+        private volatile long last;
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+            last = value;
+        }
+
+        JsonObject toJson() {
+            long n = count.sum();
+            long total = sum.sum();
+            return new JsonObject()
+                    .put("count", n)
+                    .put("sum", total)
+                    .put("avg", n == 0 ? 0.0 : (double) total / n)
+                    .put("max", n == 0 ? 0 : max.get())
+                    .put("last", last);
+        }
+    }
+}
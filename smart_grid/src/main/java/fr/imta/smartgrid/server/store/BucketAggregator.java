@@ -0,0 +1,67 @@
+package fr.imta.smartgrid.server.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds the buckets of DataPointStore.aggregate from the points of a scan, which must come in
+// timestamp order
+class BucketAggregator implements DataPointStore.PointConsumer {
+    private final long bucketSeconds;
+    private final List<DataPointStore.Bucket> buckets = new ArrayList<>();
+
+    private boolean open;
+    private long start;
+    private double min;
+    private double max;
+    private double sum;
+    private long count;
+    private double first;
+    private double last;
+
+    BucketAggregator(long bucketSeconds) {
+        this.bucketSeconds = bucketSeconds;
+    }
+
+    @Override
+    public void accept(long timestamp, double value) {
+        long bucket = timestamp - Math.floorMod(timestamp, bucketSeconds);
+        if (!open || bucket != start) {
+            close();
+            open = true;
+            start = bucket;
+            min = value;
+            max = value;
+            sum = 0;
+            count = 0;
+            first = value;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+        last = value;
+    }
+
+    // First timestamp of the bucket holding `from`
+    static long bucketStart(long from, long bucketSeconds) {
+        return from - Math.floorMod(from, bucketSeconds);
+    }
+
+    // Last timestamp of the bucket holding `to`
+    static long bucketEnd(long to, long bucketSeconds) {
+        long start = bucketStart(to, bucketSeconds);
+        return start > Long.MAX_VALUE - bucketSeconds ? Long.MAX_VALUE : start + bucketSeconds - 1;
+    }
+
+    List<DataPointStore.Bucket> buckets() {
+        close();
+        return buckets;
+    }
+
+    private void close() {
+        if (open) {
+            buckets.add(new DataPointStore.Bucket(start, min, max, sum, count, first, last));
+            open = false;
+        }
+    }
+}
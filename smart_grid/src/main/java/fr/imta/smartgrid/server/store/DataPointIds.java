@@ -0,0 +1,60 @@
+package fr.imta.smartgrid.server.store;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+
+import fr.imta.smartgrid.model.DataPoint;
+
+// Ids of the datapoints inserted through JDBC, reserved from datapoint_id_seq the same way as the
+// EclipseLink sequence of DataPoint: the sequence is incremented by DataPoint.ID_ALLOCATION_SIZE and
+// a nextval returning v reserves the ids [v - ID_ALLOCATION_SIZE + 1, v].
+// A batch of datapoints costs a sequence call only when the current block runs out.
+// The id column has no default: any insert into datapoint (scripts included) must take its ids from
+// such a block, a plain nextval per row would burn a whole block each time.
+final class DataPointIds {
+    private static final int BLOCK = DataPoint.ID_ALLOCATION_SIZE;
+
+    // current block and the reserved blocks not started yet (their last id), guarded by the class
+    private static long next;
+    private static long limit = -1;
+    private static final ArrayDeque<Long> blocks = new ArrayDeque<>();
+
+    private DataPointIds() {
+    }
+
+    // `count` fresh ids; sequence values are never rolled back so the ids stay unique even if the
+    // transaction of the caller fails
+    static synchronized Long[] allocate(Connection connection, int count) throws SQLException {
+        Long[] ids = new Long[count];
+        int filled = 0;
+        while (filled < count) {
+            if (next > limit) {
+                if (blocks.isEmpty()) {
+                    reserve(connection, (count - filled + BLOCK - 1) / BLOCK);
+                }
+                limit = blocks.poll();
+                next = limit - BLOCK + 1;
+            }
+            while (filled < count && next <= limit) {
+                ids[filled++] = next++;
+            }
+        }
+        return ids;
+    }
+
+    // one round trip for all the blocks a large batch needs
+    private static void reserve(Connection connection, int count) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT nextval('datapoint_id_seq') FROM generate_series(1, ?)")) {
+            statement.setInt(1, count);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    blocks.add(rs.getLong(1));
+                }
+            }
+        }
+    }
+}
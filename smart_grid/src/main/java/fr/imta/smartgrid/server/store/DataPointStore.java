@@ -0,0 +1,60 @@
+package fr.imta.smartgrid.server.store;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import fr.imta.smartgrid.model.DataPoint;
+
+// Where the datapoints are stored and read, the rest of the schema (grids, sensors, measurements)
+// stays in Postgres whatever the store.
+//  - PostgresDataPointStore: the datapoint table, its rollups and the cold tier
+//  - MappedDataPointStore: memory-mapped column files per measurement on the local disk
+// Selected at startup with DATAPOINT_STORE (postgres or mapped).
+public interface DataPointStore {
+    record Point(long timestamp, double value) {
+    }
+
+    // Aggregates of the points of a measurement in [start, start + bucket length)
+    record Bucket(long start, double min, double max, double sum, long count, double first, double last) {
+        public double average() {
+            return sum / count;
+        }
+    }
+
+    interface PointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    // Store the datapoints, the ones already stored (same measurement and timestamp) are skipped.
+    // Returns the number of datapoints stored.
+    int append(List<DataPoint> datapoints) throws Exception;
+
+    // Newest point of each of the measurements, measurements without a point are left out
+    Map<Integer, Point> latest(Collection<Integer> measurements);
+
+    // Points of a measurement with a timestamp in [from, to], in timestamp order
+    default void scan(int measurement, long from, long to, PointConsumer consumer) {
+        scan(measurement, from, to, Integer.MAX_VALUE, consumer);
+    }
+
+    // The first `limit` points of the range, a page starts with a seek on the timestamp instead of
+    // skipping the points of the previous pages
+    void scan(int measurement, long from, long to, int limit, PointConsumer consumer);
+
+    // Buckets of `bucketSeconds` (aligned on the epoch) overlapping [from, to] that hold points, in order.
+    // The buckets are whole: the first and last ones also count their points outside [from, to].
+    List<Bucket> aggregate(int measurement, long from, long to, long bucketSeconds);
+
+    default boolean contains(int measurement, long timestamp) {
+        boolean[] found = { false };
+        scan(measurement, timestamp, timestamp, (t, value) -> found[0] = true);
+        return found[0];
+    }
+
+    // Remove every point of the measurement, with its rollups, cold chunks and latest value
+    void delete(int measurement) throws Exception;
+
+    default void close() {
+    }
+}
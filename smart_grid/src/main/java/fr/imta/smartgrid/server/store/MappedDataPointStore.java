@@ -0,0 +1,265 @@
+package fr.imta.smartgrid.server.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.imta.smartgrid.model.DataPoint;
+
+// Embedded store keeping the datapoints of each measurement in two memory-mapped column files:
+// `<measurement>.ts` (number of points, then the timestamps) and `<measurement>.val` (the values).
+//  - the points are kept sorted by timestamp: appends in order (the common case) write at the end,
+//    a late point is inserted in place by shifting the newer ones
+//  - a range scan is a binary search on the timestamps then a sequential read of both columns
+//  - the files grow by doubling, up to ~268 million points per measurement (2 GB timestamp mapping)
+// An append in order writes the point count after the point, a crash of the process never exposes a
+// partial point. A late point is not crash-safe: the newer points are shifted before the count is
+// updated, a crash during the shift leaves one point duplicated and the newest one lost.
+// The pages are written back by the OS, with `fsync` every append is forced to disk.
+// No rollups, cold tier or retention here: aggregates are computed from the columns.
+public class MappedDataPointStore implements DataPointStore {
+    private static final int HEADER = 8;
+    private static final int INITIAL_CAPACITY = 4096;
+    // the timestamp file is mapped as a single buffer, limited to Integer.MAX_VALUE bytes
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / 8;
+
+    private final Path directory;
+    private final boolean fsync;
+    private final Map<Integer, Column> columns = new ConcurrentHashMap<>();
+
+    public MappedDataPointStore(Path directory, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public int append(List<DataPoint> datapoints) throws IOException {
+        int stored = 0;
+        for (DataPoint datapoint : datapoints) {
+            Column column = column(datapoint.getMeasurement().getId(), true);
+            if (column.append(datapoint.getTimestamp(), datapoint.getValue())) {
+                stored++;
+            }
+        }
+        if (fsync) {
+            for (DataPoint datapoint : datapoints) {
+                column(datapoint.getMeasurement().getId(), true).force();
+            }
+        }
+        return stored;
+    }
+
+    @Override
+    public Map<Integer, Point> latest(Collection<Integer> measurements) {
+        Map<Integer, Point> latest = new HashMap<>();
+        for (int measurement : measurements) {
+            Column column = column(measurement, false);
+            Point point = column == null ? null : column.last();
+            if (point != null) {
+                latest.put(measurement, point);
+            }
+        }
+        return latest;
+    }
+
+    @Override
+    public void scan(int measurement, long from, long to, int limit, PointConsumer consumer) {
+        Column column = column(measurement, false);
+        if (column != null) {
+            column.scan(from, to, limit, consumer);
+        }
+    }
+
+    @Override
+    public List<Bucket> aggregate(int measurement, long from, long to, long bucketSeconds) {
+        BucketAggregator aggregator = new BucketAggregator(bucketSeconds);
+        scan(measurement, BucketAggregator.bucketStart(from, bucketSeconds), BucketAggregator.bucketEnd(to, bucketSeconds), aggregator);
+        return aggregator.buckets();
+    }
+
+    @Override
+    public boolean contains(int measurement, long timestamp) {
+        Column column = column(measurement, false);
+        return column != null && column.contains(timestamp);
+    }
+
+    @Override
+    public void delete(int measurement) throws IOException {
+        Column column = columns.remove(measurement);
+        if (column != null) {
+            column.close();
+        }
+        Files.deleteIfExists(directory.resolve(measurement + ".ts"));
+        Files.deleteIfExists(directory.resolve(measurement + ".val"));
+    }
+
+    @Override
+    public void close() {
+        for (Column column : columns.values()) {
+            column.force();
+        }
+    }
+
+    // The column of a measurement, null if it has no file yet and `create` is false
+    private Column column(int measurement, boolean create) {
+        Column column = columns.get(measurement);
+        if (column != null) {
+            return column;
+        }
+        Path timestamps = directory.resolve(measurement + ".ts");
+        if (!create && !Files.exists(timestamps)) {
+            return null;
+        }
+        return columns.computeIfAbsent(measurement, id -> {
+            try {
+                return new Column(timestamps, directory.resolve(id + ".val"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static final class Column {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final FileChannel timestampFile;
+        private final FileChannel valueFile;
+        private MappedByteBuffer timestamps;
+        private MappedByteBuffer values;
+        private int size;
+        private int capacity;
+
+        Column(Path timestampPath, Path valuePath) throws IOException {
+            timestampFile = FileChannel.open(timestampPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            valueFile = FileChannel.open(valuePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            capacity = (int) Math.max(INITIAL_CAPACITY, (timestampFile.size() - HEADER) / 8);
+            map();
+            size = (int) timestamps.getLong(0);
+        }
+
+        // Returns false if a point with that timestamp is already stored
+        boolean append(long timestamp, double value) throws IOException {
+            lock.writeLock().lock();
+            try {
+                int position = size;
+                if (size > 0 && timestamp <= timestamp(size - 1)) {
+                    position = lowerBound(timestamp);
+                    if (timestamp(position) == timestamp) {
+                        return false;
+                    }
+                }
+                if (size == capacity) {
+                    if (capacity == MAX_CAPACITY) {
+                        throw new IOException("Datapoint column " + timestampFile + " is full");
+                    }
+                    capacity = (int) Math.min(capacity * 2L, MAX_CAPACITY);
+                    map();
+                }
+                // late point, move the newer ones up by one
+                for (int i = size; i > position; i--) {
+                    timestamps.putLong(HEADER + i * 8, timestamps.getLong(HEADER + (i - 1) * 8));
+                    values.putDouble(i * 8, values.getDouble((i - 1) * 8));
+                }
+                timestamps.putLong(HEADER + position * 8, timestamp);
+                values.putDouble(position * 8, value);
+                size++;
+                timestamps.putLong(0, size);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        Point last() {
+            lock.readLock().lock();
+            try {
+                return size == 0 ? null : new Point(timestamp(size - 1), values.getDouble((size - 1) * 8));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void scan(long from, long to, int limit, PointConsumer consumer) {
+            lock.readLock().lock();
+            try {
+                int start = lowerBound(from);
+                int end = (int) Math.min(size, (long) start + limit);
+                for (int i = start; i < end; i++) {
+                    long timestamp = timestamp(i);
+                    if (timestamp > to) {
+                        break;
+                    }
+                    consumer.accept(timestamp, values.getDouble(i * 8));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean contains(long timestamp) {
+            lock.readLock().lock();
+            try {
+                int position = lowerBound(timestamp);
+                return position < size && timestamp(position) == timestamp;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void force() {
+            lock.readLock().lock();
+            try {
+                values.force();
+                timestamps.force();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // the mappings stay valid until they are garbage collected, the column must not be used anymore
+        void close() throws IOException {
+            lock.writeLock().lock();
+            try {
+                timestampFile.close();
+                valueFile.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // first position whose timestamp is >= `timestamp`
+        private int lowerBound(long timestamp) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timestamp(middle) < timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private long timestamp(int index) {
+            return timestamps.getLong(HEADER + index * 8);
+        }
+
+        // mapping past the end of a file extends it
+        private void map() throws IOException {
+            timestamps = timestampFile.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity * 8L);
+            values = valueFile.map(FileChannel.MapMode.READ_WRITE, 0, capacity * 8L);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package fr.imta.smartgrid.server.store;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.server.cold.ColdTier;
+import fr.imta.smartgrid.server.db.ReadReplica;
+import fr.imta.smartgrid.server.db.Rollups;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// The datapoints in the Postgres datapoint table (and the cold tier chunks), with the rollup tables
+// and measurement_latest maintained by the inserts. Every call uses its own EntityManager.
+public class PostgresDataPointStore implements DataPointStore {
+    // One statement per batch: the datapoints are passed as arrays, a duplicate that got past the
+    // ReadingDeduplicator is skipped by the unique (measurement, timestamp) index, and only the rows
+    // actually inserted are added to the rollup tables
+    private static final String INSERT_SQL = buildInsert();
+
+    private final EntityManagerFactory emf;
+    private final ReadReplica replica; // null without a replica
+    private final int fetchSize;
+
+    public PostgresDataPointStore(EntityManagerFactory emf, ReadReplica replica, int fetchSize) {
+        this.emf = emf;
+        this.replica = replica;
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public int append(List<DataPoint> datapoints) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            int inserted = insert(db.unwrap(Connection.class), datapoints);
+            db.getTransaction().commit();
+            return inserted;
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    @Override
+    public Map<Integer, Point> latest(Collection<Integer> measurements) {
+        Map<Integer, Point> latest = new HashMap<>();
+        if (measurements.isEmpty()) {
+            return latest;
+        }
+        EntityManager db = emf.createEntityManager();
+        try {
+            // ids are integers, they can be inlined in the IN list
+            String ids = measurements.stream().map(String::valueOf).collect(Collectors.joining(","));
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = db.createNativeQuery(
+                    "SELECT measurement, timestamp, value FROM measurement_latest WHERE measurement IN (" + ids + ")")
+                    .getResultList();
+            for (Object[] row : rows) {
+                latest.put(((Number) row[0]).intValue(), new Point(((Number) row[1]).longValue(), ((Number) row[2]).doubleValue()));
+            }
+            return latest;
+        } finally {
+            db.close();
+        }
+    }
+
+    // Old datapoints may have been moved to the compressed cold tier, both sorted series are merged.
+    // Both are read through server-side cursors (`fetchSize` rows at a time), the memory used does
+    // not depend on the range; the cursors need a transaction.
+    // The hot rows are an index range scan of datapoint(measurement, timestamp) stopped after `limit` rows.
+    @Override
+    public void scan(int measurement, long from, long to, int limit, PointConsumer consumer) {
+        EntityManager db = reads().createEntityManager();
+        try {
+            db.getTransaction().begin();
+            Connection connection = db.unwrap(Connection.class);
+            try (ColdTier.Cursor cold = new ColdTier.Cursor(connection, measurement, from, to);
+                    PreparedStatement statement = connection.prepareStatement(
+                            "SELECT timestamp, value FROM datapoint WHERE measurement = ? " +
+                            "AND timestamp >= ? AND timestamp <= ? ORDER BY timestamp LIMIT ?")) {
+                statement.setFetchSize(Math.min(fetchSize, limit));
+                statement.setInt(1, measurement);
+                statement.setLong(2, from);
+                statement.setLong(3, to);
+                statement.setInt(4, limit);
+                int count = 0;
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (count < limit && rs.next()) {
+                        long timestamp = rs.getLong(1);
+                        for (; count < limit && cold.hasNext() && cold.timestamp() < timestamp; cold.next(), count++) {
+                            consumer.accept(cold.timestamp(), cold.value());
+                        }
+                        if (count < limit) {
+                            consumer.accept(timestamp, rs.getDouble(2));
+                            count++;
+                        }
+                    }
+                }
+                for (; count < limit && cold.hasNext(); cold.next(), count++) {
+                    consumer.accept(cold.timestamp(), cold.value());
+                }
+            }
+            db.getTransaction().commit();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the datapoints of measurement " + measurement, e);
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    // Whole buckets: the rollup rows of the first and last buckets are all counted, like their points in a scan.
+    // Grouped in the database from the coarsest rollup table whose bucket length divides `bucketSeconds`
+    // (5m from 1m, 6h from 1h...), computed from a scan when there is none (less than a minute...)
+    @Override
+    public List<Bucket> aggregate(int measurement, long from, long to, long bucketSeconds) {
+        Rollups.Resolution resolution = null;
+        for (Rollups.Resolution rollup : Rollups.ROLLUPS) {
+            if (bucketSeconds % rollup.seconds() == 0) {
+                resolution = rollup;
+            }
+        }
+        if (resolution == null) {
+            BucketAggregator aggregator = new BucketAggregator(bucketSeconds);
+            scan(measurement, BucketAggregator.bucketStart(from, bucketSeconds), BucketAggregator.bucketEnd(to, bucketSeconds), aggregator);
+            return aggregator.buckets();
+        }
+
+        EntityManager db = reads().createEntityManager();
+        try {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = db.createNativeQuery(
+                    "SELECT bucket - bucket % ?1, min(min), max(max), sum(sum), sum(count), " +
+                    "(array_agg(first ORDER BY bucket))[1], (array_agg(last ORDER BY bucket DESC))[1] " +
+                    "FROM " + resolution.table() + " " +
+                    "WHERE measurement = ?2 AND bucket >= ?3 AND bucket <= ?4 GROUP BY 1 ORDER BY 1")
+                    .setParameter(1, bucketSeconds)
+                    .setParameter(2, measurement)
+                    .setParameter(3, BucketAggregator.bucketStart(from, bucketSeconds))
+                    .setParameter(4, BucketAggregator.bucketEnd(to, bucketSeconds))
+                    .getResultList();
+
+            List<Bucket> buckets = new ArrayList<>(rows.size());
+            for (Object[] row : rows) {
+                buckets.add(new Bucket(
+                        ((Number) row[0]).longValue(),
+                        ((Number) row[1]).doubleValue(),
+                        ((Number) row[2]).doubleValue(),
+                        ((Number) row[3]).doubleValue(),
+                        ((Number) row[4]).longValue(),
+                        ((Number) row[5]).doubleValue(),
+                        ((Number) row[6]).doubleValue()));
+            }
+            return buckets;
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public boolean contains(int measurement, long timestamp) {
+        EntityManager db = emf.createEntityManager();
+        try {
+            // a datapoint of a day moved to the cold tier is in its chunk
+            return !db.createNativeQuery("SELECT 1 FROM datapoint WHERE measurement = ?1 AND timestamp = ?2")
+                    .setParameter(1, measurement)
+                    .setParameter(2, timestamp)
+                    .setMaxResults(1)
+                    .getResultList()
+                    .isEmpty()
+                    || ColdTier.contains(db, measurement, timestamp);
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public void delete(int measurement) throws SQLException {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            Connection connection = db.unwrap(Connection.class);
+            List<String> tables = new ArrayList<>(List.of("datapoint", "datapoint_chunk", "measurement_latest"));
+            for (Rollups.Resolution resolution : Rollups.ROLLUPS) {
+                tables.add(resolution.table());
+            }
+            for (String table : tables) {
+                try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table + " WHERE measurement = ?")) {
+                    statement.setInt(1, measurement);
+                    statement.executeUpdate();
+                }
+            }
+            db.getTransaction().commit();
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    // scan() and aggregate() serve the values route and may lag a little; latest() and contains()
+    // feed the energy totals and the deduplication of the ingest, they always read the primary
+    private EntityManagerFactory reads() {
+        return replica != null ? replica.forReads() : emf;
+    }
+
+    // Insert datapoints and update their rollups, the caller owns the transaction.
+    // Returns the number of datapoints inserted, the others were already stored.
+    public static int insert(Connection connection, List<DataPoint> datapoints) throws SQLException {
+        // the unique index only sees the datapoint table, the ones already in a cold chunk are dropped here
+        datapoints = ColdTier.withoutStored(connection, datapoints);
+        if (datapoints.isEmpty()) {
+            return 0;
+        }
+        Long[] timestamps = new Long[datapoints.size()];
+        Double[] values = new Double[datapoints.size()];
+        Integer[] measurements = new Integer[datapoints.size()];
+        for (int i = 0; i < datapoints.size(); i++) {
+            DataPoint datapoint = datapoints.get(i);
+            timestamps[i] = datapoint.getTimestamp();
+            values[i] = datapoint.getValue();
+            measurements[i] = datapoint.getMeasurement().getId();
+        }
+
+        // the ids come from blocks reserved in advance instead of a nextval per row
+        Long[] ids = DataPointIds.allocate(connection, datapoints.size());
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            statement.setArray(1, connection.createArrayOf("int8", ids));
+            statement.setArray(2, connection.createArrayOf("int8", timestamps));
+            statement.setArray(3, connection.createArrayOf("float8", values));
+            statement.setArray(4, connection.createArrayOf("int4", measurements));
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static String buildInsert() {
+        StringBuilder sql = new StringBuilder(
+                "WITH input AS (SELECT * FROM unnest(?::bigint[], ?::bigint[], ?::float8[], ?::int[]) AS t (id, timestamp, value, measurement)), " +
+                "inserted AS (INSERT INTO datapoint (id, timestamp, value, measurement) " +
+                "SELECT id, timestamp, value, measurement FROM input " +
+                "ON CONFLICT (measurement, timestamp) DO NOTHING " +
+                "RETURNING measurement, timestamp, value)");
+        for (Rollups.Resolution resolution : Rollups.ROLLUPS) {
+            sql.append(", rollup_").append(resolution.label()).append(" AS (")
+                    .append(Rollups.upsert(resolution, Rollups.aggregate(resolution, "inserted")))
+                    .append(")");
+        }
+        // a late datapoint does not replace a newer latest value
+        sql.append(", latest AS (INSERT INTO measurement_latest AS l (measurement, timestamp, value) " +
+                "SELECT DISTINCT ON (measurement) measurement, timestamp, value FROM inserted " +
+                "ORDER BY measurement, timestamp DESC " +
+                "ON CONFLICT (measurement) DO UPDATE SET timestamp = EXCLUDED.timestamp, value = EXCLUDED.value " +
+                "WHERE EXCLUDED.timestamp >= l.timestamp)");
+        return sql.append(" SELECT count(*) FROM inserted").toString();
+    }
+}
@@ -0,0 +1,104 @@
+package fr.imta.smartgrid.server.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+// Ingest and range read throughput of a DataPointStore, run with `./gradlew run --args=bench-store`.
+// It writes `points` datapoints (one per minute) starting at `start` to a measurement it creates
+// (`store_benchmark`, without sensor), then deletes the measurement with its datapoints, rollups and
+// latest value: the measurements of the sensors are never touched.
+public final class StoreBenchmark {
+    private static final String MEASUREMENT_NAME = "store_benchmark";
+
+    private StoreBenchmark() {
+    }
+
+    public static void run(EntityManagerFactory emf, DataPointStore store, long start, int points, int batchSize, int reads,
+            long readWindow) throws Exception {
+        int measurement = createMeasurement(emf);
+        System.out.println("Benchmark measurement " + measurement);
+        try {
+            measure(store, measurement, start, points, batchSize, reads, readWindow);
+        } finally {
+            store.delete(measurement);
+            deleteMeasurement(emf, measurement);
+            System.out.println("Deleted benchmark measurement " + measurement);
+        }
+    }
+
+    private static void measure(DataPointStore store, int measurement, long start, int points, int batchSize, int reads,
+            long readWindow) throws Exception {
+        Measurement target = new Measurement();
+        target.setId(measurement);
+
+        long begin = System.nanoTime();
+        List<DataPoint> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < points; i++) {
+            DataPoint datapoint = new DataPoint();
+            datapoint.setMeasurement(target);
+            datapoint.setTimestamp(start + i * 60L);
+            datapoint.setValue(i * 0.5);
+            batch.add(datapoint);
+            if (batch.size() == batchSize || i == points - 1) {
+                store.append(batch);
+                batch.clear();
+            }
+        }
+        long appendNanos = System.nanoTime() - begin;
+        System.out.printf("append: %d points in %d ms, %.0f points/s%n",
+                points, TimeUnit.NANOSECONDS.toMillis(appendNanos), points / (appendNanos / 1e9));
+
+        Random random = new Random(42);
+        long[] read = { 0 };
+        long end = start + points * 60L;
+        begin = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            long from = start + (long) (random.nextDouble() * Math.max(1, end - start - readWindow));
+            store.scan(measurement, from, from + readWindow, (timestamp, value) -> read[0]++);
+        }
+        long scanNanos = System.nanoTime() - begin;
+        System.out.printf("scan: %d reads of %d s in %d ms, %.1f reads/s, %.0f points/s%n",
+                reads, readWindow, TimeUnit.NANOSECONDS.toMillis(scanNanos), reads / (scanNanos / 1e9), read[0] / (scanNanos / 1e9));
+    }
+
+    private static int createMeasurement(EntityManagerFactory emf) {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            Measurement measurement = new Measurement();
+            measurement.setName(MEASUREMENT_NAME);
+            db.persist(measurement);
+            db.getTransaction().commit();
+            return measurement.getId();
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+
+    private static void deleteMeasurement(EntityManagerFactory emf, int measurement) {
+        EntityManager db = emf.createEntityManager();
+        try {
+            db.getTransaction().begin();
+            Measurement target = db.find(Measurement.class, measurement);
+            if (target != null) {
+                db.remove(target);
+            }
+            db.getTransaction().commit();
+        } finally {
+            if (db.getTransaction().isActive()) {
+                db.getTransaction().rollback();
+            }
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package fr.imta.smartgrid.server.udp;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+import fr.imta.smartgrid.model.Sensor;
+import fr.imta.smartgrid.server.DbExecutor;
+import fr.imta.smartgrid.server.handlers.WindTurbineIngressHandler;
+import fr.imta.smartgrid.server.ingest.DataPointWriter;
+import fr.imta.smartgrid.server.ingest.IngestGate;
+import fr.imta.smartgrid.server.ingest.LastValueCache;
+import fr.imta.smartgrid.server.ingest.ReadingDeduplicator;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Binary sensor protocol, for any kind of sensor (solar panels, wind turbines, EV chargers).
+// All the fields are big endian, a frame is a 4 bytes header followed by `count` readings:
+//
+//   header:  magic 'S' 'G' (2 bytes) | version = 1 (1 byte) | count (1 byte, at least 1)
+//   reading: sensor id (int32) | measurement bitmap (1 byte) | timestamp (int64, seconds)
+//            | one IEEE754 float64 per bit set in the bitmap, lowest bit first
+//
+// Bits of the bitmap: 0 = temperature, 1 = power, 2 = speed, the other bits must be 0.
+// A solar panel reading (temperature and power) is 29 bytes, and decoding it is a few reads
+// at fixed offsets instead of tokenizing and parsing the decimal text of UDPServer.
+// The energy totals (total_energy_produced / total_energy_consumed) are computed from the
+// power like for the other ingest paths, they are never sent by the sensor.
+public class BinaryUDPServer {
+    public static final int MAGIC = 0x5347; // "SG"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4;
+    // sensor id + bitmap + timestamp
+    public static final int READING_HEADER_SIZE = 4 + 1 + 8;
+
+    // measurement name of each bit of the bitmap
+    private static final String[] MEASUREMENTS = { "temperature", "power", "speed" };
+    private static final int POWER_BIT = 1;
+    private static final int VALID_BITS = (1 << MEASUREMENTS.length) - 1;
+
+    private final Vertx vertx;
+    private final EntityManagerFactory emf;
+    private final DataPointWriter writer;
+    private final LastValueCache lastValues;
+    private final ReadingDeduplicator dedup;
+    private final Metrics metrics;
+    private final DbExecutor dbExecutor;
+    private final IngestGate gate;
+
+    public BinaryUDPServer(Vertx vertx, EntityManagerFactory emf, DataPointWriter writer, LastValueCache lastValues,
+            ReadingDeduplicator dedup, Metrics metrics, DbExecutor dbExecutor, IngestGate gate) {
+        this.vertx = vertx;
+        this.emf = emf;
+        this.writer = writer;
+        this.lastValues = lastValues;
+        this.dedup = dedup;
+        this.metrics = metrics;
+        this.dbExecutor = dbExecutor;
+        this.gate = gate;
+    }
+
+    // `sockets` sockets on the port, see DatagramReceiver.start
+    public void start(int port, int sockets) {
+        new DatagramReceiver<Reading>(vertx, emf, metrics, dbExecutor, gate, "Binary UDP Server", "udp.binary.socket.",
+                () -> BinaryUDPServer::decodeFrame, Reading::sensorId, this::saveReadings).start(port, sockets);
+    }
+
+    // A decoded reading, values[bit] is only meaningful when the bit is set in the bitmap
+    record Reading(int sensorId, int bitmap, long timestamp, double[] values) {
+    }
+
+    // A malformed frame is rejected as a whole, the datapoints of a sensor in a frame are saved in the same transaction
+    private static List<Reading> decodeFrame(Buffer frame, LongAdder invalid) {
+        List<Reading> readings = decode(frame);
+        if (readings == null) {
+            invalid.increment();
+            System.err.println("Invalid binary UDP frame of " + frame.length() + " bytes");
+            return List.of();
+        }
+        return readings;
+    }
+
+    // Returns null if the frame is malformed: bad header, unknown bits, truncated or trailing bytes
+    static List<Reading> decode(Buffer frame) {
+        int length = frame.length();
+        if (length < HEADER_SIZE || frame.getUnsignedShort(0) != MAGIC || frame.getUnsignedByte(2) != VERSION) {
+            return null;
+        }
+        int count = frame.getUnsignedByte(3);
+        if (count == 0) {
+            return null;
+        }
+
+        List<Reading> readings = new ArrayList<>(count);
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (offset + READING_HEADER_SIZE > length) {
+                return null;
+            }
+            int sensorId = frame.getInt(offset);
+            int bitmap = frame.getUnsignedByte(offset + 4);
+            long timestamp = frame.getLong(offset + 5);
+            offset += READING_HEADER_SIZE;
+
+            if (bitmap == 0 || (bitmap & ~VALID_BITS) != 0 || offset + 8 * Integer.bitCount(bitmap) > length) {
+                return null;
+            }
+            double[] values = new double[MEASUREMENTS.length];
+            for (int bit = 0; bit < MEASUREMENTS.length; bit++) {
+                if ((bitmap & (1 << bit)) != 0) {
+                    values[bit] = frame.getDouble(offset);
+                    offset += 8;
+                }
+            }
+            readings.add(new Reading(sensorId, bitmap, timestamp, values));
+        }
+
+        return offset == length ? readings : null;
+    }
+
+    private void saveReadings(EntityManager db, List<Reading> readings, LongAdder dropped) {
+        List<DataPoint> datapoints = new ArrayList<>(3 * readings.size());
+        for (Reading reading : readings) {
+            addReading(db, datapoints, reading);
+        }
+
+        if (datapoints.isEmpty()) {
+            return;
+        }
+        // the writer logs the drops, at most once in a while
+        if (!writer.submit(datapoints)) {
+            dropped.increment();
+            // the energy totals were already accumulated in the cache, take them back
+            WindTurbineIngressHandler.revert(lastValues, dedup, datapoints);
+        }
+    }
+
+    // Build one datapoint per value of the reading the sensor has a measurement for, plus the new
+    // energy total when the power is sent. The total goes to the cache right away so that several
+    // readings of the same sensor in one frame accumulate correctly.
+    private void addReading(EntityManager db, List<DataPoint> datapoints, Reading reading) {
+        try {
+            Sensor sensor = db.find(Sensor.class, reading.sensorId());
+            if (sensor == null) {
+                System.err.println("Sensor not found with ID: " + reading.sensorId());
+                return;
+            }
+
+            Measurement[] measurements = new Measurement[MEASUREMENTS.length];
+            Measurement energyMeasurement = null;
+            for (Measurement m : sensor.getMeasurements()) {
+                if ("total_energy_produced".equals(m.getName()) || "total_energy_consumed".equals(m.getName())) {
+                    energyMeasurement = m;
+                    continue;
+                }
+                for (int bit = 0; bit < MEASUREMENTS.length; bit++) {
+                    if (MEASUREMENTS[bit].equals(m.getName())) {
+                        measurements[bit] = m;
+                    }
+                }
+            }
+
+            // A resent reading must neither be stored again nor counted twice in the energy total,
+            // it is keyed on the power when sent (like the other ingest paths), else on its first value
+            Measurement key = null;
+            for (int bit : new int[] { POWER_BIT, 0, 2 }) {
+                if (key == null && (reading.bitmap() & (1 << bit)) != 0) {
+                    key = measurements[bit];
+                }
+            }
+            if (key != null && !dedup.accept(key, reading.timestamp())) {
+                return;
+            }
+
+            for (int bit = 0; bit < MEASUREMENTS.length; bit++) {
+                if ((reading.bitmap() & (1 << bit)) != 0 && measurements[bit] != null) {
+                    datapoints.add(WindTurbineIngressHandler.createDataPoint(measurements[bit], reading.timestamp(), reading.values()[bit]));
+                }
+            }
+
+            if (energyMeasurement != null && (reading.bitmap() & (1 << POWER_BIT)) != 0) {
+                datapoints.add(WindTurbineIngressHandler.energyDataPoint(lastValues, energyMeasurement, reading.timestamp(),
+                        reading.values()[POWER_BIT]));
+            }
+        } catch (Exception e) {
+            System.err.println("Error processing binary UDP reading: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
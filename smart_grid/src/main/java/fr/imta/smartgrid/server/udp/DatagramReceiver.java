@@ -0,0 +1,160 @@
+package fr.imta.smartgrid.server.udp;
+
+import fr.imta.smartgrid.server.DbExecutor;
+import fr.imta.smartgrid.server.ingest.IngestGate;
+import fr.imta.smartgrid.server.metrics.Metrics;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+// UDP sockets of a sensor protocol (UDPServer, BinaryUDPServer).
+// A datagram is decoded on the event loop of its socket, then its readings are saved on the
+// DbExecutor, behind the IngestGate of the protocol. The readings are grouped by sensor and the
+// groups of a sensor are saved in the order the datagrams arrived, so that its energy totals are
+// accumulated and stored in timestamp order. Each socket counts the datagrams received,
+// the invalid records and the datagrams dropped under `udp[.<protocol>].socket.<index>.*`.
+public class DatagramReceiver<T> {
+    // Readings of a datagram, the records rejected are counted in `invalid`.
+    // A decoder is only used by the event loop of its socket, it may keep state between datagrams.
+    public interface Decoder<T> {
+        List<T> decode(Buffer datagram, LongAdder invalid);
+    }
+
+    // Save the readings of a sensor in a datagram, on the DbExecutor; readings that cannot be queued
+    // are counted in `dropped`. `db` is opened for this call only: the sockets run on several event
+    // loops and their groups on several DB threads, an EntityManager must never be shared by them.
+    public interface Sink<T> {
+        void save(EntityManager db, List<T> readings, LongAdder dropped);
+    }
+
+    private final Vertx vertx;
+    private final EntityManagerFactory emf;
+    private final Metrics metrics;
+    private final DbExecutor dbExecutor;
+    private final IngestGate gate;
+    private final String name; // for the logs
+    private final String metricPrefix;
+    private final Supplier<Decoder<T>> decoders; // one decoder per socket
+    private final ToIntFunction<T> sensorId;
+    private final Sink<T> sink;
+
+    public DatagramReceiver(Vertx vertx, EntityManagerFactory emf, Metrics metrics, DbExecutor dbExecutor, IngestGate gate, String name, String metricPrefix,
+            Supplier<Decoder<T>> decoders, ToIntFunction<T> sensorId, Sink<T> sink) {
+        this.vertx = vertx;
+        this.emf = emf;
+        this.metrics = metrics;
+        this.dbExecutor = dbExecutor;
+        this.gate = gate;
+        this.name = name;
+        this.metricPrefix = metricPrefix;
+        this.decoders = decoders;
+        this.sensorId = sensorId;
+        this.sink = sink;
+    }
+
+    // Bind `sockets` UDP sockets on the port. With more than one socket they all use SO_REUSEPORT
+    // and each one runs in its own verticle instance, i.e. on its own event loop, so the kernel
+    // spreads the datagrams over several cores. The kernel hashes the source address to pick the
+    // socket, all the packets of a sensor therefore go through the same socket, in order.
+    public void start(int port, int sockets) {
+        if (sockets > 1 && !vertx.isNativeTransportEnabled()) {
+            System.err.println("SO_REUSEPORT needs the native transport, starting a single " + name + " socket");
+            sockets = 1;
+        }
+
+        AtomicInteger index = new AtomicInteger();
+        boolean reusePort = sockets > 1;
+        vertx.deployVerticle(() -> new Socket(index.getAndIncrement(), port, reusePort),
+                new DeploymentOptions().setInstances(sockets))
+                .onSuccess(id -> System.out.println(name + " listening on port " + port + " with " + index.get() + " socket(s)"))
+                .onFailure(e -> System.err.println("Failed to start " + name + ": " + e.getMessage()));
+    }
+
+    // One UDP socket with its own decoder and counters
+    private class Socket extends AbstractVerticle {
+        private final int port;
+        private final boolean reusePort;
+        private final Decoder<T> decoder = decoders.get();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+
+        Socket(int index, int port, boolean reusePort) {
+            this.port = port;
+            this.reusePort = reusePort;
+            metrics.gauge(metricPrefix + index + ".received", received::sum);
+            metrics.gauge(metricPrefix + index + ".invalid", invalid::sum);
+            metrics.gauge(metricPrefix + index + ".dropped", dropped::sum);
+        }
+
+        @Override
+        public void start(Promise<Void> startPromise) {
+            DatagramSocket socket = vertx.createDatagramSocket(new DatagramSocketOptions().setReusePort(reusePort));
+            socket.handler(packet -> {
+                received.increment();
+                receive(packet.data());
+            });
+            socket.listen(port, "0.0.0.0", res -> {
+                if (res.succeeded()) {
+                    startPromise.complete();
+                } else {
+                    startPromise.fail(res.cause());
+                }
+            });
+        }
+
+        private void receive(Buffer datagram) {
+            List<T> readings = decoder.decode(datagram, invalid);
+            if (readings.isEmpty()) {
+                return;
+            }
+
+            // shed load when too many datagrams are already waiting for the database
+            if (!gate.tryAcquire()) {
+                gate.drop();
+                dropped.increment();
+                return;
+            }
+            // one gate slot per datagram, released when the last of its groups is saved
+            Map<Integer, List<T>> bySensor = groupBySensor(readings);
+            AtomicInteger pending = new AtomicInteger(bySensor.size());
+            bySensor.forEach((sensor, group) -> dbExecutor.execute(sensor, () -> {
+                EntityManager db = emf.createEntityManager();
+                try {
+                    sink.save(db, group, dropped);
+                } finally {
+                    db.close();
+                    if (pending.decrementAndGet() == 0) {
+                        gate.release();
+                    }
+                }
+            }));
+        }
+
+        private Map<Integer, List<T>> groupBySensor(List<T> readings) {
+            if (readings.size() == 1) {
+                return Map.of(sensorId.applyAsInt(readings.get(0)), readings);
+            }
+            Map<Integer, List<T>> bySensor = new LinkedHashMap<>();
+            for (T reading : readings) {
+                bySensor.computeIfAbsent(sensorId.applyAsInt(reading), id -> new ArrayList<>()).add(reading);
+            }
+            return bySensor;
+        }
+    }
+}
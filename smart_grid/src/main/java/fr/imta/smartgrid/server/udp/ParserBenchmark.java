@@ -0,0 +1,77 @@
+package fr.imta.smartgrid.server.udp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.buffer.Buffer;
+
+// Parsing throughput of the solar panel datagrams, run with `./gradlew run --args=bench-parser`.
+// Compares the String.split parser UDPServer used before SolarPanelDatagramParser, the current one,
+// and the decoding of the same readings as BinaryUDPServer frames, on `records` random readings,
+// `rounds` times each (the first rounds warm the JIT up, compare the last ones). Needs no database.
+public final class ParserBenchmark {
+    private ParserBenchmark() {
+    }
+
+    public static void run(int records, int rounds) {
+        Random random = new Random(42);
+        Buffer[] datagrams = new Buffer[records];
+        Buffer[] frames = new Buffer[records];
+        for (int i = 0; i < records; i++) {
+            int id = random.nextInt(1000);
+            double temperature = random.nextInt(6000) / 100.0;
+            double power = random.nextInt(5000000) / 1000.0;
+            long timestamp = 1743509245L + i * 60L;
+            datagrams[i] = Buffer.buffer(id + ":" + temperature + ":" + power + ":" + timestamp);
+            // one reading with the temperature (bit 0) and the power (bit 1)
+            frames[i] = Buffer.buffer(BinaryUDPServer.HEADER_SIZE + BinaryUDPServer.READING_HEADER_SIZE + 16)
+                    .appendUnsignedShort(BinaryUDPServer.MAGIC).appendUnsignedByte((short) BinaryUDPServer.VERSION)
+                    .appendUnsignedByte((short) 1)
+                    .appendInt(id).appendUnsignedByte((short) 0b011).appendLong(timestamp)
+                    .appendDouble(temperature).appendDouble(power);
+        }
+
+        SolarPanelDatagramParser parser = new SolarPanelDatagramParser();
+        for (int round = 1; round <= rounds; round++) {
+            double sum = 0;
+            long begin = System.nanoTime();
+            for (Buffer datagram : datagrams) {
+                sum += splitParse(datagram);
+            }
+            report("split", round, records, System.nanoTime() - begin, sum);
+
+            sum = 0;
+            begin = System.nanoTime();
+            for (Buffer datagram : datagrams) {
+                if (parser.parse(datagram)) {
+                    sum += parser.id() + parser.temperature() + parser.power() + parser.timestamp();
+                }
+            }
+            report("parser", round, records, System.nanoTime() - begin, sum);
+
+            sum = 0;
+            begin = System.nanoTime();
+            for (Buffer frame : frames) {
+                for (BinaryUDPServer.Reading reading : BinaryUDPServer.decode(frame)) {
+                    sum += reading.sensorId() + reading.values()[0] + reading.values()[1] + reading.timestamp();
+                }
+            }
+            report("binary", round, records, System.nanoTime() - begin, sum);
+        }
+    }
+
+    // The parsing UDPServer did before SolarPanelDatagramParser
+    private static double splitParse(Buffer datagram) {
+        String[] parts = datagram.toString().split(":");
+        if (parts.length != 4) {
+            return 0;
+        }
+        return Integer.parseInt(parts[0]) + Double.parseDouble(parts[1]) + Double.parseDouble(parts[2]) + Long.parseLong(parts[3]);
+    }
+
+    // the checksum keeps the JIT from dropping the parsing and shows both parsers read the same values
+    private static void report(String name, int round, int records, long nanos, double checksum) {
+        System.out.printf("round %d %-6s: %d records in %d ms, %.0f records/s (checksum %.3f)%n",
+                round, name, records, TimeUnit.NANOSECONDS.toMillis(nanos), records / (nanos / 1e9), checksum);
+    }
+}
@@ -0,0 +1,195 @@
+package fr.imta.smartgrid.server.udp;
+
+import io.vertx.core.buffer.Buffer;
+
+// Parser for the `id:temperature:power:timestamp` solar panel records.
+// It reads the bytes of the datagram buffer directly into primitive fields, without
+// building a String, a regex or boxed numbers, so parsing a packet does not allocate.
+// The parsed values stay available through the getters until the next call to parse(),
+// an instance must therefore be used by a single thread (one per socket / event loop).
+public class SolarPanelDatagramParser {
+    // 10^0 .. 10^22 are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // mantissas up to 2^53 are exact, so one multiplication / division is correctly rounded
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private int id;
+    private double temperature;
+    private double power;
+    private long timestamp;
+
+    // position reached by the last number parsed, -1 on error
+    private int position;
+
+    public int id() {
+        return id;
+    }
+
+    public double temperature() {
+        return temperature;
+    }
+
+    public double power() {
+        return power;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public boolean parse(Buffer buffer) {
+        return parse(buffer, 0, buffer.length());
+    }
+
+    // Parse the record stored in buffer[start, end), returns false if it is not a valid record
+    public boolean parse(Buffer buffer, int start, int end) {
+        // ignore surrounding whitespace, e.g. a trailing newline
+        while (start < end && isWhitespace(buffer.getByte(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(buffer.getByte(end - 1))) {
+            end--;
+        }
+
+        long parsedId = parseLong(buffer, start, end);
+        if (!expectSeparator(buffer, end) || parsedId < Integer.MIN_VALUE || parsedId > Integer.MAX_VALUE) {
+            return false;
+        }
+        double parsedTemperature = parseDouble(buffer, position + 1, end);
+        if (!expectSeparator(buffer, end)) {
+            return false;
+        }
+        double parsedPower = parseDouble(buffer, position + 1, end);
+        if (!expectSeparator(buffer, end)) {
+            return false;
+        }
+        long parsedTimestamp = parseLong(buffer, position + 1, end);
+        if (position != end) {
+            return false;
+        }
+
+        id = (int) parsedId;
+        temperature = parsedTemperature;
+        power = parsedPower;
+        timestamp = parsedTimestamp;
+        return true;
+    }
+
+    private boolean expectSeparator(Buffer buffer, int end) {
+        return position >= 0 && position < end && buffer.getByte(position) == ':';
+    }
+
+    // Parse an optionally signed integer starting at `start`, stops at the first non digit
+    private long parseLong(Buffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.getByte(i) == '-' || buffer.getByte(i) == '+')) {
+            negative = buffer.getByte(i) == '-';
+            i++;
+        }
+
+        int digitsStart = i;
+        long value = 0;
+        while (i < end) {
+            int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            // accumulate negatively so that Long.MIN_VALUE can be parsed
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                position = -1;
+                return 0;
+            }
+            value = value * 10 - digit;
+            i++;
+        }
+
+        if (i == digitsStart || (!negative && value == Long.MIN_VALUE)) {
+            position = -1;
+            return 0;
+        }
+        position = i;
+        return negative ? value : -value;
+    }
+
+    // Parse a decimal number ([sign] digits [. digits] [e [sign] digits]) starting at `start`.
+    // Numbers that do not fit the exact fast path (more than 15-16 significant digits or a
+    // large exponent) are rare for sensor values and fall back to Double.parseDouble.
+    private double parseDouble(Buffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.getByte(i) == '-' || buffer.getByte(i) == '+')) {
+            negative = buffer.getByte(i) == '-';
+            i++;
+        }
+        int digitsStart = i;
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean exact = true;
+
+        while (i < end) {
+            int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                mantissa = mantissa * 10 + digit;
+            } else {
+                exact = false;
+            }
+            digits++;
+            i++;
+        }
+
+        if (i < end && buffer.getByte(i) == '.') {
+            i++;
+            while (i < end) {
+                int digit = buffer.getByte(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + digit;
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+                digits++;
+                i++;
+            }
+        }
+
+        if (digits == 0) {
+            position = -1;
+            return 0;
+        }
+
+        if (i < end && (buffer.getByte(i) == 'e' || buffer.getByte(i) == 'E')) {
+            long explicitExponent = parseLong(buffer, i + 1, end);
+            if (position < 0 || explicitExponent > 9999 || explicitExponent < -9999) {
+                position = -1;
+                return 0;
+            }
+            exponent += (int) explicitExponent;
+            i = position;
+        }
+        position = i;
+
+        double value;
+        if (exact && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            value = Double.parseDouble(buffer.getString(digitsStart, i));
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
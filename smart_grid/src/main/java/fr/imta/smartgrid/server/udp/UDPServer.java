@@ -3,57 +3,120 @@ package fr.imta.smartgrid.server.udp;
 import fr.imta.smartgrid.model.DataPoint;
 import fr.imta.smartgrid.model.Measurement;
 import fr.imta.smartgrid.model.SolarPanel;
+import fr.imta.smartgrid.server.DbExecutor;
+import fr.imta.smartgrid.server.handlers.WindTurbineIngressHandler;
+import fr.imta.smartgrid.server.ingest.DataPointWriter;
+import fr.imta.smartgrid.server.ingest.IngestGate;
+import fr.imta.smartgrid.server.ingest.LastValueCache;
+import fr.imta.smartgrid.server.ingest.ReadingDeduplicator;
+import fr.imta.smartgrid.server.metrics.Metrics;
 import io.vertx.core.Vertx;
-import io.vertx.core.datagram.DatagramSocket;
-import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.buffer.Buffer;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class UDPServer {
     private final Vertx vertx;
-    private final EntityManager db;
-    private DatagramSocket socket;
-
-    public UDPServer(Vertx vertx, EntityManager db) {
+    private final EntityManagerFactory emf;
+    private final DataPointWriter writer;
+    private final LastValueCache lastValues;
+    private final ReadingDeduplicator dedup;
+    private final Metrics metrics;
+    private final DbExecutor dbExecutor;
+    private final IngestGate gate;
+    // accept several newline separated records per datagram (panel concentrators)
+    private final boolean multiRecord;
+
+    public UDPServer(Vertx vertx, EntityManagerFactory emf, DataPointWriter writer, LastValueCache lastValues,
+            ReadingDeduplicator dedup, Metrics metrics, DbExecutor dbExecutor, IngestGate gate, boolean multiRecord) {
         this.vertx = vertx;
-        this.db = db;
+        this.emf = emf;
+        this.writer = writer;
+        this.lastValues = lastValues;
+        this.dedup = dedup;
+        this.metrics = metrics;
+        this.dbExecutor = dbExecutor;
+        this.gate = gate;
+        this.multiRecord = multiRecord;
     }
 
-    public void start(int port) {
-        // Create UDP socket with options
-        DatagramSocketOptions options = new DatagramSocketOptions();
-        socket = vertx.createDatagramSocket(options);
-
-        // Listen for incoming packets
-        socket.listen(port, "0.0.0.0", res -> {
-            if (res.succeeded()) {
-                System.out.println("UDP Server listening on port " + port);
-                
-                // Set packet handler
-                socket.handler(packet -> {
-                    String message = packet.data().toString();
-                    processUDPMessage(message);
-                });
-            } else {
-                System.err.println("Failed to start UDP server: " + res.cause().getMessage());
-            }
-        });
+    // `sockets` sockets on the port, see DatagramReceiver.start
+    public void start(int port, int sockets) {
+        new DatagramReceiver<Reading>(vertx, emf, metrics, dbExecutor, gate, "UDP Server", "udp.socket.", () -> {
+            // packets of a socket are handled on its event loop, one parser per socket is enough
+            SolarPanelDatagramParser parser = new SolarPanelDatagramParser();
+            return (datagram, invalid) -> parseReadings(parser, datagram, invalid);
+        }, Reading::solarPanelId, this::saveReadings).start(port, sockets);
     }
 
-    // Process incoming UDP messages from solar panels
-    private void processUDPMessage(String message) {
-        try {
+    // A parsed `id:temperature:power:timestamp` record
+    private record Reading(int solarPanelId, double temperature, double power, long timestamp) {
+    }
+
+    // Process incoming UDP messages from solar panels.
+    // In multi-record mode a datagram (up to the 2048 bytes Netty reads per packet, more than an
+    // ethernet MTU) holds one `id:temperature:power:timestamp` record per line, a datagram with a
+    // single record and no newline is still valid. The datapoints of a panel in a datagram are
+    // queued as one group so they are saved in the same transaction.
+    // Parsing happens on the event loop of the socket, the database work on the DbExecutor.
+    private List<Reading> parseReadings(SolarPanelDatagramParser parser, Buffer message, LongAdder invalid) {
+        List<Reading> readings = new ArrayList<>(1);
+
+        if (!multiRecord) {
             // Parse the message with format: id:temperature:power:timestamp
-            String[] parts = message.split(":");
-            if (parts.length != 4) {
+            if (!parser.parse(message)) {
+                invalid.increment();
                 System.err.println("Invalid UDP message format: " + message);
-                return;
+                return readings;
             }
+            readings.add(new Reading(parser.id(), parser.temperature(), parser.power(), parser.timestamp()));
+        } else {
+            int length = message.length();
+            int start = 0;
+            while (start < length) {
+                int end = start;
+                while (end < length && message.getByte(end) != '\n') {
+                    end++;
+                }
+                boolean blank = end == start || (end == start + 1 && message.getByte(start) == '\r');
+                if (!blank) {
+                    if (parser.parse(message, start, end)) {
+                        readings.add(new Reading(parser.id(), parser.temperature(), parser.power(), parser.timestamp()));
+                    } else {
+                        invalid.increment();
+                        System.err.println("Invalid UDP record format: " + message.getString(start, end));
+                    }
+                }
+                start = end + 1;
+            }
+        }
 
-            int solarPanelId = Integer.parseInt(parts[0]);
-            double temperature = Double.parseDouble(parts[1]);
-            double power = Double.parseDouble(parts[2]);
-            long timestamp = Long.parseLong(parts[3]);
+        return readings;
+    }
+
+    private void saveReadings(EntityManager db, List<Reading> readings, LongAdder dropped) {
+        List<DataPoint> datapoints = new ArrayList<>(3 * readings.size());
+        for (Reading reading : readings) {
+            addReading(db, datapoints, reading.solarPanelId(), reading.temperature(), reading.power(), reading.timestamp());
+        }
 
+        // the writer logs the drops, at most once in a while
+        if (!writer.submit(datapoints)) {
+            dropped.increment();
+            // the energy totals were already accumulated in the cache, take them back
+            WindTurbineIngressHandler.revert(lastValues, dedup, datapoints);
+        }
+    }
+
+    // Build the temperature, power and energy datapoints of a reading.
+    // The new energy total goes to the cache right away so that several readings of the
+    // same panel in one datagram accumulate correctly.
+    private void addReading(EntityManager db, List<DataPoint> datapoints, int solarPanelId, double temperature, double power, long timestamp) {
+        try {
             // Look up the solar panel
             SolarPanel solarPanel = db.find(SolarPanel.class, solarPanelId);
             if (solarPanel == null) {
@@ -76,70 +139,29 @@ public class UDPServer {
                 }
             }
 
-            // Get latest energy datapoint to calculate the new total
-            double prevEnergy = 0;
-            if (energyMeasurement != null) {
-                // Find the latest energy datapoint
-                DataPoint latestEnergy = db.createQuery(
-                    "SELECT dp FROM DataPoint dp WHERE dp.measurement = :measurement " +
-                    "ORDER BY dp.timestamp DESC", DataPoint.class)
-                    .setParameter("measurement", energyMeasurement)
-                    .setMaxResults(1)
-                    .getResultList()
-                    .stream()
-                    .findFirst()
-                    .orElse(null);
-
-                if (latestEnergy != null) {
-                    prevEnergy = latestEnergy.getValue();
-                }
+            // A resent reading must neither be stored again nor counted twice in the energy total
+            Measurement key = powerMeasurement != null ? powerMeasurement : tempMeasurement;
+            if (key != null && !dedup.accept(key, timestamp)) {
+                return;
             }
 
-            // Calculate new energy (assuming 60 seconds between measurements)
-            // Energy (Wh) = Power (W) * Time (h), where time is 60 seconds = 1/60 hour
-            double newEnergy = prevEnergy + (power * (1.0 / 60.0));
-
             // Create temperature datapoint
             if (tempMeasurement != null) {
-                saveDataPoint(tempMeasurement, timestamp, temperature);
+                datapoints.add(WindTurbineIngressHandler.createDataPoint(tempMeasurement, timestamp, temperature));
             }
 
             // Create power datapoint
             if (powerMeasurement != null) {
-                saveDataPoint(powerMeasurement, timestamp, power);
+                datapoints.add(WindTurbineIngressHandler.createDataPoint(powerMeasurement, timestamp, power));
             }
 
-            // Create energy datapoint
+            // Add the energy of the reading to the latest total, same computation as the wind turbines
             if (energyMeasurement != null) {
-                saveDataPoint(energyMeasurement, timestamp, newEnergy);
+                datapoints.add(WindTurbineIngressHandler.energyDataPoint(lastValues, energyMeasurement, timestamp, power));
             }
-
-            System.out.println("Processed solar panel data - ID: " + solarPanelId + 
-                    ", Temperature: " + temperature + 
-                    ", Power: " + power + 
-                    ", Timestamp: " + timestamp);
-
         } catch (Exception e) {
             System.err.println("Error processing UDP message: " + e.getMessage());
             e.printStackTrace();
         }
     }
-
-    private void saveDataPoint(Measurement measurement, long timestamp, double value) {
-        try {
-            DataPoint datapoint = new DataPoint();
-            datapoint.setMeasurement(measurement);
-            datapoint.setTimestamp(timestamp);
-            datapoint.setValue(value);
-
-            db.getTransaction().begin();
-            db.persist(datapoint);
-            db.getTransaction().commit();
-        } catch (Exception e) {
-            if (db.getTransaction().isActive()) {
-                db.getTransaction().rollback();
-            }
-            System.err.println("Error saving datapoint: " + e.getMessage());
-        }
-    }
 }
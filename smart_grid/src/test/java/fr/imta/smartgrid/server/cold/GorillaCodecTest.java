@@ -0,0 +1,163 @@
+package fr.imta.smartgrid.server.cold;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Round trips of the cold tier codec: a chunk is the only copy of its points once the rows are deleted
+class GorillaCodecTest {
+    private static final long DAY_START = 1743465600L;
+
+    @Test
+    void emptySeries() {
+        byte[] data = GorillaCodec.encode(new long[0], new double[0], 0);
+        assertEquals(0, GorillaCodec.count(data));
+        GorillaCodec.decode(data, (timestamp, value) -> {
+            throw new AssertionError("no point expected");
+        });
+    }
+
+    @Test
+    void onePoint() {
+        assertRoundTrip(new long[] { DAY_START }, new double[] { 42.5 });
+        assertRoundTrip(new long[] { Long.MIN_VALUE }, new double[] { Double.NaN });
+        assertRoundTrip(new long[] { Long.MAX_VALUE }, new double[] { -0.0 });
+    }
+
+    @Test
+    void regularSeriesCostsAboutOneBitPerTimestamp() {
+        int count = 1440;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = DAY_START + i * 60L;
+            values[i] = 21.5;
+        }
+        byte[] data = assertRoundTrip(timestamps, values);
+        // header (20 bytes), the first delta (9 bits), then 2 bits per point: same delta, same value
+        assertTrue(data.length <= 20 + (9 + 2 * count + 7) / 8, "chunk of " + data.length + " bytes");
+    }
+
+    @Test
+    void reusesTheWindowOfThePreviousXor() {
+        // 1.0 -> 1.5 -> 1.0 -> 1.5: the same XOR every time, written in the window of the first one
+        double[] values = { 1.0, 1.5, 1.0, 1.5, 1.25, 1.75 };
+        assertRoundTrip(regular(values.length), values);
+
+        // a narrower XOR after a wide one still fits in its window
+        double wide = Double.longBitsToDouble(Double.doubleToRawLongBits(3.0) ^ 0x000F_FFFF_FFFF_FFF0L);
+        double narrow = Double.longBitsToDouble(Double.doubleToRawLongBits(wide) ^ 0x0000_0000_0F00_0000L);
+        assertRoundTrip(regular(3), new double[] { 3.0, wide, narrow });
+
+        // then one that does not fit (more leading or trailing bits) opens a new window
+        double outside = Double.longBitsToDouble(Double.doubleToRawLongBits(narrow) ^ 0x8000_0000_0000_0001L);
+        assertRoundTrip(regular(4), new double[] { 3.0, wide, narrow, outside });
+    }
+
+    @Test
+    void deltaOfDeltaAtEveryEncodingBoundary() {
+        long[] deltaOfDeltas = { 0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+                1L << 40, -(1L << 40) };
+        for (long deltaOfDelta : deltaOfDeltas) {
+            long[] timestamps = { DAY_START, DAY_START + 60, DAY_START + 120 + deltaOfDelta, DAY_START + 180 + deltaOfDelta };
+            assertRoundTrip(timestamps, new double[] { 1, 2, 3, 4 });
+        }
+    }
+
+    @Test
+    void deltaOfDeltaNeedingAll64Bits() {
+        // the deltas overflow, the decoder must wrap around exactly like the encoder
+        long[] timestamps = { Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, Long.MAX_VALUE };
+        assertRoundTrip(timestamps, new double[] { 1, 2, 3, 4, 5, 6 });
+    }
+
+    @Test
+    void specialValues() {
+        double[] values = { Double.NaN, -1.5, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -0.0, 0.0,
+                Double.MIN_VALUE, -Double.MAX_VALUE, Double.longBitsToDouble(0x7ff8_0000_0000_0001L), Double.NaN,
+                -273.15, Double.longBitsToDouble(0xffff_ffff_ffff_ffffL) };
+        assertRoundTrip(regular(values.length), values);
+    }
+
+    @Test
+    void duplicateTimestamps() {
+        long[] timestamps = { DAY_START, DAY_START, DAY_START, DAY_START + 60, DAY_START + 60, DAY_START + 61 };
+        assertRoundTrip(timestamps, new double[] { 1, 1, 2, 3, 3, 3 });
+    }
+
+    @Test
+    void randomSeries() {
+        Random random = new Random(20250401);
+        for (int series = 0; series < 500; series++) {
+            int count = random.nextInt(series < 50 ? 5 : 3000) + 1;
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            long timestamp = random.nextLong();
+            double value = random.nextGaussian() * 1000;
+            for (int i = 0; i < count; i++) {
+                timestamp += switch (random.nextInt(6)) {
+                    case 0, 1 -> 60; // regular readings
+                    case 2 -> 60 + random.nextInt(21) - 10; // jitter
+                    case 3 -> random.nextInt(5000); // gaps, and duplicates
+                    case 4 -> random.nextLong(); // anything, the deltas overflow
+                    default -> 0;
+                };
+                value = switch (random.nextInt(6)) {
+                    case 0, 1 -> value; // same reading
+                    case 2 -> value + random.nextInt(100) / 10.0; // small change
+                    case 3 -> -value;
+                    case 4 -> Double.longBitsToDouble(random.nextLong()); // any bits, NaN payloads included
+                    default -> Math.round(random.nextGaussian() * 1e6) / 100.0;
+                };
+                timestamps[i] = timestamp;
+                values[i] = value;
+            }
+            assertRoundTrip(timestamps, values);
+        }
+    }
+
+    @Test
+    void matchesDetectsADifferentPoint() {
+        long[] timestamps = regular(3);
+        double[] values = { 1, 2, 3 };
+        byte[] data = GorillaCodec.encode(timestamps, values, 3);
+        assertTrue(GorillaCodec.matches(data, timestamps, values, 3));
+        assertFalse(GorillaCodec.matches(data, timestamps, new double[] { 1, 2, 3.0000001 }, 3));
+        assertFalse(GorillaCodec.matches(data, new long[] { timestamps[0], timestamps[1], timestamps[2] + 1 }, values, 3));
+        assertFalse(GorillaCodec.matches(data, timestamps, values, 2));
+    }
+
+    private static long[] regular(int count) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = DAY_START + i * 60L;
+        }
+        return timestamps;
+    }
+
+    // Encode then decode, the points must come back with the same timestamps and the same value bits
+    private static byte[] assertRoundTrip(long[] timestamps, double[] values) {
+        byte[] data = GorillaCodec.encode(timestamps, values, timestamps.length);
+        assertEquals(timestamps.length, GorillaCodec.count(data));
+
+        List<Long> decodedTimestamps = new ArrayList<>();
+        List<Long> decodedBits = new ArrayList<>();
+        GorillaCodec.decode(data, (timestamp, value) -> {
+            decodedTimestamps.add(timestamp);
+            decodedBits.add(Double.doubleToRawLongBits(value));
+        });
+        assertEquals(timestamps.length, decodedTimestamps.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], decodedTimestamps.get(i), "timestamp " + i);
+            assertEquals(Double.doubleToRawLongBits(values[i]), decodedBits.get(i), "value " + i);
+        }
+        assertTrue(GorillaCodec.matches(data, timestamps, values, timestamps.length));
+        return data;
+    }
+}
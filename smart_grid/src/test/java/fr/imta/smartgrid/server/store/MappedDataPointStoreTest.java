@@ -0,0 +1,118 @@
+package fr.imta.smartgrid.server.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.imta.smartgrid.model.DataPoint;
+import fr.imta.smartgrid.model.Measurement;
+
+class MappedDataPointStoreTest {
+    private static final int MEASUREMENT = 7;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendsInOrderAndScansARange() throws Exception {
+        MappedDataPointStore store = new MappedDataPointStore(directory, false);
+        List<DataPoint> datapoints = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            datapoints.add(datapoint(1000 + i * 60, i));
+        }
+        assertEquals(10, store.append(datapoints));
+
+        List<DataPointStore.Point> points = scan(store, 1060, 1240, Integer.MAX_VALUE);
+        assertEquals(List.of(new DataPointStore.Point(1060, 1), new DataPointStore.Point(1120, 2),
+                new DataPointStore.Point(1180, 3), new DataPointStore.Point(1240, 4)), points);
+        assertEquals(2, scan(store, 0, Long.MAX_VALUE, 2).size());
+        assertEquals(new DataPointStore.Point(1540, 9), store.latest(List.of(MEASUREMENT)).get(MEASUREMENT));
+        assertNull(store.latest(List.of(MEASUREMENT + 1)).get(MEASUREMENT + 1));
+    }
+
+    @Test
+    void insertsLatePointsInPlaceAndRejectsDuplicates() throws Exception {
+        MappedDataPointStore store = new MappedDataPointStore(directory, false);
+        store.append(List.of(datapoint(100, 1), datapoint(300, 3), datapoint(500, 5)));
+        assertEquals(2, store.append(List.of(datapoint(200, 2), datapoint(50, 0.5))));
+        assertEquals(0, store.append(List.of(datapoint(300, 33), datapoint(50, 55))));
+
+        assertEquals(List.of(new DataPointStore.Point(50, 0.5), new DataPointStore.Point(100, 1), new DataPointStore.Point(200, 2),
+                new DataPointStore.Point(300, 3), new DataPointStore.Point(500, 5)), scan(store, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE));
+        assertTrue(store.contains(MEASUREMENT, 200));
+        assertFalse(store.contains(MEASUREMENT, 201));
+        assertEquals(new DataPointStore.Point(500, 5), store.latest(List.of(MEASUREMENT)).get(MEASUREMENT));
+    }
+
+    @Test
+    void reopensAfterGrowingWithLatePoints() throws Exception {
+        // 10000 points grow the columns from 4096 points twice; one in four arrives late
+        Random random = new Random(42);
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            timestamps.add(1743465600L + i * 60L);
+        }
+        List<Long> order = new ArrayList<>(timestamps);
+        for (int i = 0; i + 4 <= order.size(); i += 4) {
+            Collections.shuffle(order.subList(i, i + 4), random);
+        }
+        Collections.swap(order, 0, order.size() - 1); // the oldest point arrives last
+
+        Map<Long, Double> expected = new TreeMap<>();
+        MappedDataPointStore store = new MappedDataPointStore(directory, false);
+        for (int i = 0; i < order.size(); i += 100) {
+            List<DataPoint> batch = new ArrayList<>();
+            for (long timestamp : order.subList(i, Math.min(order.size(), i + 100))) {
+                double value = random.nextGaussian();
+                expected.put(timestamp, value);
+                batch.add(datapoint(timestamp, value));
+            }
+            assertEquals(batch.size(), store.append(batch));
+        }
+        store.close();
+
+        MappedDataPointStore reopened = new MappedDataPointStore(directory, false);
+        List<DataPointStore.Point> points = scan(reopened, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(expected.size(), points.size());
+        int i = 0;
+        for (Map.Entry<Long, Double> entry : expected.entrySet()) {
+            assertEquals(new DataPointStore.Point(entry.getKey(), entry.getValue()), points.get(i++));
+        }
+        assertEquals(new DataPointStore.Point(timestamps.get(9999), expected.get(timestamps.get(9999))),
+                reopened.latest(List.of(MEASUREMENT)).get(MEASUREMENT));
+
+        // the reopened column keeps growing and inserting in place
+        assertEquals(1, reopened.append(List.of(datapoint(timestamps.get(5000) + 30, 1.5))));
+        assertEquals(0, reopened.append(List.of(datapoint(timestamps.get(0), 0))));
+        assertEquals(10001, scan(reopened, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        assertTrue(reopened.contains(MEASUREMENT, timestamps.get(5000) + 30));
+    }
+
+    private static List<DataPointStore.Point> scan(DataPointStore store, long from, long to, int limit) {
+        List<DataPointStore.Point> points = new ArrayList<>();
+        store.scan(MEASUREMENT, from, to, limit, (timestamp, value) -> points.add(new DataPointStore.Point(timestamp, value)));
+        return points;
+    }
+
+    private static DataPoint datapoint(long timestamp, double value) {
+        Measurement measurement = new Measurement();
+        measurement.setId(MEASUREMENT);
+        DataPoint datapoint = new DataPoint();
+        datapoint.setMeasurement(measurement);
+        datapoint.setTimestamp(timestamp);
+        datapoint.setValue(value);
+        return datapoint;
+    }
+}